@@ -0,0 +1,51 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.math.vector.Vector3d;
+import com.hypixel.hytale.protocol.packets.world.SetChunk;
+import com.hypixel.hytale.server.core.io.handlers.game.GamePacketHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A tick's chunk packets queued through the packet filter and drained by the sender, which writes them through
+ * {@code PacketHandler.write} and the array encoder it installs. A batch size of 1 byte writes every packet on its own,
+ * larger ones write a batch once its estimated bytes reach the size. The encoded bytes are discarded at the head of the pipeline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BatchingBenchmark {
+    private static final int PACKETS = 64;
+
+    @Param({"1", "1024", "65536"})
+    public long batchSize;
+
+    private QueuedPacketSenderSystem system;
+    private GamePacketHandler handler;
+    private SetChunk[] packets;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SoftPacketConfig config = Stubs.config();
+        Stubs.set(config, "batchSize", batchSize);
+        system = new QueuedPacketSenderSystem(config);
+        handler = Stubs.connectedPlayer(new Vector3d(16, 100, 16));
+        packets = Stubs.chunks(PACKETS, 4, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        handler.getChannel().close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public long queueAndDrain() {
+        for (SetChunk packet : packets) {
+            system.test(handler, packet);
+        }
+        system.drain();
+        return system.metrics.getTotalPackets();
+    }
+}
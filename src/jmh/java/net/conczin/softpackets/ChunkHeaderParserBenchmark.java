@@ -0,0 +1,68 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.protocol.CachedPacket;
+import com.hypixel.hytale.protocol.Packet;
+import com.hypixel.hytale.protocol.packets.world.SetChunk;
+import com.hypixel.hytale.protocol.packets.world.UnloadChunk;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading chunk coordinates from plain and encoded chunk packets, and hashing encoded bytes for sharing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ChunkHeaderParserBenchmark {
+    private SetChunk plain;
+    private Packet cached;
+    private UnloadChunk unload;
+    private Packet cachedUnload;
+    private ByteBuf bytes;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        plain = Stubs.chunk(12, 3, -7);
+        cached = CachedPacket.cache(plain);
+        unload = Stubs.unload(12, -7);
+        cachedUnload = CachedPacket.cache(unload);
+
+        byte[] data = new byte[16 * 1024];
+        new SplittableRandom(0).nextBytes(data);
+        bytes = Unpooled.wrappedBuffer(data);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        bytes.release();
+    }
+
+    @Benchmark
+    public long fromPlainPacket() {
+        return ChunkHeaderParser.fromPacket(plain);
+    }
+
+    @Benchmark
+    public long fromCachedPacket() {
+        return ChunkHeaderParser.fromPacket(cached);
+    }
+
+    @Benchmark
+    public long fromPlainUnloadPacket() {
+        return ChunkHeaderParser.fromUnloadPacket(unload);
+    }
+
+    @Benchmark
+    public long fromCachedUnloadPacket() {
+        return ChunkHeaderParser.fromUnloadPacket(cachedUnload);
+    }
+
+    @Benchmark
+    public long hash16K() {
+        return ChunkHeaderParser.hash(bytes);
+    }
+}
@@ -0,0 +1,66 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.math.vector.Vector3d;
+import com.hypixel.hytale.protocol.packets.world.SetChunk;
+import com.hypixel.hytale.server.core.io.handlers.game.GamePacketHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packet filter ingestion, the part running on the network threads, followed by the sender draining the inboxes.
+ * Packets are re-sent chunk updates, so queues stay at their size through coalescing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IngestBenchmark {
+    private static final int BATCH = 1024;
+
+    @Param({"1", "20", "200"})
+    public int players;
+
+    @Param({"100", "5000", "50000"})
+    public int queueSize;
+
+    private QueuedPacketSenderSystem system;
+    private GamePacketHandler[] handlers;
+    private SetChunk[][] packets;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        system = new QueuedPacketSenderSystem(Stubs.config());
+        handlers = new GamePacketHandler[players];
+        packets = new SetChunk[players][];
+        int perPlayer = Math.max(1, queueSize / players);
+        for (int i = 0; i < players; i++) {
+            handlers[i] = Stubs.player(new Vector3d(16, 100, 16));
+            packets[i] = Stubs.chunks(perPlayer, 4, i);
+            for (SetChunk packet : packets[i]) {
+                system.test(handlers[i], packet);
+            }
+        }
+        for (QueuedPacketSenderSystem.PlayerQueue queue : system.queues.values()) {
+            queue.drainInbox();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int test() {
+        int queued = 0;
+        for (int i = 0; i < BATCH; i++) {
+            int player = cursor % players;
+            SetChunk[] chunks = packets[player];
+            if (system.test(handlers[player], chunks[(cursor / players) % chunks.length])) {
+                queued++;
+            }
+            cursor++;
+        }
+        for (QueuedPacketSenderSystem.PlayerQueue queue : system.queues.values()) {
+            queue.drainInbox();
+        }
+        return queued;
+    }
+}
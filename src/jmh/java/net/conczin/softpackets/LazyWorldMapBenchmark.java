@@ -0,0 +1,57 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.math.vector.Vector3d;
+import com.hypixel.hytale.protocol.packets.worldmap.MapChunk;
+import com.hypixel.hytale.protocol.packets.worldmap.MapImage;
+import com.hypixel.hytale.protocol.packets.worldmap.UpdateWorldMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * World map updates, split into images and the rest, and sent back nearest first in byte-budgeted batches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LazyWorldMapBenchmark {
+    @Param({"100", "5000", "50000"})
+    public int tiles;
+
+    private UpdateWorldMap update;
+    private LazyWorldMap map;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int radius = (int) Math.ceil(Math.sqrt(tiles) / 2);
+        MapChunk[] chunks = new MapChunk[tiles];
+        for (int i = 0; i < tiles; i++) {
+            MapChunk chunk = new MapChunk();
+            chunk.chunkX = i % (2 * radius) - radius;
+            chunk.chunkZ = i / (2 * radius) - radius;
+            chunk.image = i % 8 == 0 ? null : new MapImage();
+            chunks[i] = chunk;
+        }
+        update = new UpdateWorldMap(chunks, null, null);
+
+        map = new LazyWorldMap(new Vector3d(0, 100, 0));
+        map.update(update);
+    }
+
+    @Benchmark
+    public UpdateWorldMap filter() {
+        return LazyWorldMap.filter(update);
+    }
+
+    /**
+     * Takes the nearest batch and queues it again, keeping the map at its size.
+     */
+    @Benchmark
+    public UpdateWorldMap getNextPacket() {
+        UpdateWorldMap packet = map.getNextPacket(32 * 1024);
+        if (packet != null) {
+            map.update(packet);
+        }
+        return packet;
+    }
+}
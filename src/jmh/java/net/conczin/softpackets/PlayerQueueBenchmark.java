@@ -0,0 +1,111 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.math.vector.Vector3d;
+import com.hypixel.hytale.protocol.packets.world.SetChunk;
+import com.hypixel.hytale.server.core.io.handlers.game.GamePacketHandler;
+import net.conczin.softpackets.QueuedPacketSenderSystem.CachedPacket;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single player's queue at steady state, every packet taken out is queued again.
+ * The queue is rebuilt before every iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PlayerQueueBenchmark {
+    @Param({"100", "5000", "50000"})
+    public int queueSize;
+
+    private QueuedPacketSenderSystem system;
+    private GamePacketHandler handler;
+    private Vector3d position;
+    private Vector3d direction;
+    private double angle;
+    private QueuedPacketSenderSystem.PlayerQueue queue;
+    private SetChunk[] chunks;
+    private int cursor;
+    private boolean moved;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        system = new QueuedPacketSenderSystem(Stubs.config());
+        position = new Vector3d(16, 100, 16);
+        direction = new Vector3d(1, 0, 0);
+        handler = Stubs.player(position, direction);
+        chunks = Stubs.chunks(queueSize, 4, 0);
+        for (SetChunk packet : chunks) {
+            system.test(handler, packet);
+        }
+        queue = system.queues.get(handler);
+        queue.drainInbox();
+    }
+
+    private void requeue(CachedPacket packet) {
+        queue.offer(new CachedPacket(packet.packet(), -1, packet.chunkKey));
+        queue.drainInbox();
+    }
+
+    /**
+     * Takes the nearest packet and queues it again.
+     */
+    @Benchmark
+    public CachedPacket addPoll() {
+        CachedPacket packet = queue.poll();
+        requeue(packet);
+        return packet;
+    }
+
+    /**
+     * Moves the player to the next chunk and back, re-ranking the queue lazily on the following poll.
+     */
+    @Benchmark
+    public CachedPacket verifyPoll() {
+        moved = !moved;
+        position.x = moved ? 48 : 16;
+        queue.verify(handler);
+        CachedPacket packet = queue.poll();
+        if (packet != null) {
+            requeue(packet);
+        }
+        return packet;
+    }
+
+    /**
+     * Turns the view by a few degrees without moving, crossing into another view sector now and then.
+     */
+    @Benchmark
+    public CachedPacket turnPoll() {
+        angle += Math.toRadians(5);
+        direction.x = Math.cos(angle);
+        direction.z = Math.sin(angle);
+        queue.verify(handler);
+        CachedPacket packet = queue.poll();
+        if (packet != null) {
+            requeue(packet);
+        }
+        return packet;
+    }
+
+    /**
+     * Unloads a column and queues its chunks again.
+     * Dropped entries are only skipped once polled, so each iteration runs a fixed batch on a fresh queue.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 10, batchSize = 10_000)
+    @Measurement(iterations = 20, batchSize = 10_000)
+    public int removeAdd() {
+        SetChunk chunk = chunks[cursor++ % chunks.length];
+        long key = ChunkHeaderParser.pack(chunk.x, -1, chunk.z);
+        queue.offer(new CachedPacket(Stubs.unload(chunk.x, chunk.z), 0, key));
+        queue.drainInbox();
+        for (int y = 0; y < 10; y++) {
+            queue.offer(new CachedPacket(Stubs.chunk(chunk.x, y, chunk.z), -1, ChunkHeaderParser.pack(chunk.x, y, chunk.z)));
+        }
+        queue.drainInbox();
+        return queue.getSize();
+    }
+}
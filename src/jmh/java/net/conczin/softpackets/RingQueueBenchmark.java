@@ -0,0 +1,71 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.math.vector.Vector3d;
+import com.hypixel.hytale.protocol.packets.world.SetChunk;
+import net.conczin.softpackets.QueuedPacketSenderSystem.CachedPacket;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ring queue against the distance-sorted priority queue it replaced, which had to be rebuilt whenever the player moved.
+ * Each operation moves the player by a chunk, takes the nearest packet and queues it again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RingQueueBenchmark {
+    private static final Vector3d DIRECTION = new Vector3d(1, 0, 0);
+
+    @Param({"100", "5000", "50000"})
+    public int queueSize;
+
+    private final Vector3d position = new Vector3d(16, 100, 16);
+    private boolean moved;
+
+    private ChunkRingQueue rings;
+    private PriorityQueue<CachedPacket> sorted;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        rings = new ChunkRingQueue(position, new Metrics(Stubs.config()));
+        sorted = new PriorityQueue<>(comparator());
+        for (SetChunk chunk : Stubs.chunks(queueSize, 0, 0)) {
+            long key = ChunkHeaderParser.pack(chunk.x, chunk.y, chunk.z);
+            rings.add(new CachedPacket(chunk, -1, key));
+            sorted.add(new CachedPacket(chunk, -1, key));
+        }
+    }
+
+    private Comparator<CachedPacket> comparator() {
+        Vector3d center = new Vector3d(position.x, position.y, position.z);
+        return Comparator.comparingDouble(p -> ChunkHeaderParser.distanceTo3dSquared(p.chunkKey, center));
+    }
+
+    private void move() {
+        moved = !moved;
+        position.x = moved ? 48 : 16;
+    }
+
+    @Benchmark
+    public CachedPacket ringQueue() {
+        move();
+        rings.recenter(position, position, DIRECTION);
+        CachedPacket packet = rings.poll();
+        rings.add(packet);
+        return packet;
+    }
+
+    @Benchmark
+    public CachedPacket priorityQueue() {
+        move();
+        PriorityQueue<CachedPacket> resorted = new PriorityQueue<>(Math.max(1, sorted.size()), comparator());
+        resorted.addAll(sorted);
+        sorted = resorted;
+        CachedPacket packet = sorted.poll();
+        sorted.add(packet);
+        return packet;
+    }
+}
@@ -0,0 +1,153 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.math.vector.Transform;
+import com.hypixel.hytale.math.vector.Vector3d;
+import com.hypixel.hytale.protocol.packets.world.SetChunk;
+import com.hypixel.hytale.protocol.packets.world.UnloadChunk;
+import com.hypixel.hytale.server.core.io.handlers.game.GamePacketHandler;
+import com.hypixel.hytale.server.core.universe.PlayerRef;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.mockito.Answers;
+import org.mockito.stubbing.Answer;
+
+import java.lang.reflect.Field;
+import java.util.SplittableRandom;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Stub players and packets, so the scheduler runs without a server.
+ */
+final class Stubs {
+    private Stubs() {
+    }
+
+    static SoftPacketConfig config() {
+        SoftPacketConfig config = new SoftPacketConfig();
+        set(config, "maxBandwidth", Long.MAX_VALUE / 4);
+        set(config, "minBandwidth", Long.MAX_VALUE / 4);
+        set(config, "throttleWhenPingDegrades", false);
+        return config;
+    }
+
+    static void set(SoftPacketConfig config, String name, Object value) {
+        try {
+            Field field = SoftPacketConfig.class.getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(config, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A connected player at the given position, whose writes go nowhere.
+     * The returned position is live, moving it moves the player.
+     */
+    static GamePacketHandler player(Vector3d position) {
+        return player(position, new Vector3d(1, 0, 0));
+    }
+
+    /**
+     * A connected player at the given position and view direction, both live, whose writes go nowhere.
+     */
+    static GamePacketHandler player(Vector3d position, Vector3d direction) {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addLast("packetArrayEncoder", new ChannelOutboundHandlerAdapter());
+
+        Transform transform = mock(Transform.class, withSettings().stubOnly());
+        when(transform.getPosition()).thenReturn(position);
+        when(transform.getDirection()).thenReturn(direction);
+
+        PlayerRef playerRef = mock(PlayerRef.class, withSettings().stubOnly());
+        when(playerRef.getTransform()).thenReturn(transform);
+
+        GamePacketHandler handler = mock(GamePacketHandler.class, withSettings().stubOnly().defaultAnswer(RETURNS_DEEP_STUBS));
+        when(handler.getChannel()).thenReturn(channel);
+        when(handler.getPlayerRef()).thenReturn(playerRef);
+        when(handler.stillActive()).thenReturn(true);
+        when(handler.isLocalConnection()).thenReturn(false);
+        return handler;
+    }
+
+    /**
+     * A connected player at the given position whose writes go down its channel, through the packet encoder
+     * the sender installs, and are discarded at the head of the pipeline.
+     */
+    static GamePacketHandler connectedPlayer(Vector3d position) {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addLast("packetArrayEncoder", new ChannelOutboundHandlerAdapter());
+        channel.pipeline().addFirst("sink", new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+                ReferenceCountUtil.release(msg);
+                promise.trySuccess();
+            }
+        });
+
+        Transform transform = mock(Transform.class, withSettings().stubOnly());
+        when(transform.getPosition()).thenReturn(position);
+        when(transform.getDirection()).thenReturn(new Vector3d(1, 0, 0));
+
+        PlayerRef playerRef = mock(PlayerRef.class, withSettings().stubOnly());
+        when(playerRef.getTransform()).thenReturn(transform);
+
+        // Writes of the handler go down the channel, whatever overload the sender picks
+        Answer<Object> writes = invocation -> {
+            if (!invocation.getMethod().getName().equals("write")) {
+                return Answers.RETURNS_DEEP_STUBS.answer(invocation);
+            }
+            for (Object argument : invocation.getRawArguments()) {
+                channel.write(argument);
+            }
+            channel.flush();
+            return null;
+        };
+        GamePacketHandler handler = mock(GamePacketHandler.class, withSettings().stubOnly().defaultAnswer(writes));
+        when(handler.getChannel()).thenReturn(channel);
+        when(handler.getPlayerRef()).thenReturn(playerRef);
+        when(handler.stillActive()).thenReturn(true);
+        when(handler.isLocalConnection()).thenReturn(false);
+        return handler;
+    }
+
+    static SetChunk chunk(int x, int y, int z) {
+        SetChunk packet = new SetChunk();
+        packet.x = x;
+        packet.y = y;
+        packet.z = z;
+        return packet;
+    }
+
+    static UnloadChunk unload(int x, int z) {
+        UnloadChunk packet = new UnloadChunk();
+        packet.chunkX = x;
+        packet.chunkZ = z;
+        return packet;
+    }
+
+    /**
+     * Distinct chunks between the given rings around the origin chunk, outside the immediate-send radius.
+     */
+    static SetChunk[] chunks(int count, int minRing, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        SetChunk[] chunks = new SetChunk[count];
+        int maxRing = minRing + (int) Math.ceil(Math.sqrt(count / 10.0) / 2) + 1;
+        LongOpenHashSet seen = new LongOpenHashSet();
+        for (int i = 0; i < count; ) {
+            int x = random.nextInt(-maxRing, maxRing + 1);
+            int z = random.nextInt(-maxRing, maxRing + 1);
+            int y = random.nextInt(0, 10);
+            if (Math.max(Math.abs(x), Math.abs(z)) < minRing || !seen.add(ChunkHeaderParser.pack(x, y, z))) {
+                continue;
+            }
+            chunks[i++] = chunk(x, y, z);
+        }
+        return chunks;
+    }
+}
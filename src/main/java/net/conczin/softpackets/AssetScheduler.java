@@ -0,0 +1,86 @@
+package net.conczin.softpackets;
+
+import net.conczin.softpackets.QueuedPacketSenderSystem.CachedPacket;
+
+import java.util.ArrayDeque;
+
+/**
+ * Queued config, asset and other packets without a position of a single player, sent by their priority class in the {@link PacketRegistry}.
+ * Config packets of a class keep their order, asset streams (initialize, parts, finalize) stay contiguous and in order.
+ * World load progress packets act as barriers, nothing queued after one is sent before it and vice versa.
+ */
+public class AssetScheduler {
+    private static final int CLASSES = PacketRegistry.BARRIER;
+
+    private static final class Epoch {
+        final PacketDeque[] classes = new PacketDeque[CLASSES];
+
+        // Sent once everything above is sent, closes the epoch
+        CachedPacket barrier;
+    }
+
+    private final PacketRegistry registry;
+    private final ArrayDeque<Epoch> epochs = new ArrayDeque<>();
+    private int size = 0;
+    private int barriers = 0;
+
+    public AssetScheduler(PacketRegistry registry) {
+        this.registry = registry;
+        epochs.add(new Epoch());
+    }
+
+    public void add(CachedPacket packet) {
+        Epoch epoch = epochs.getLast();
+        int priority = registry.priorityOf(packet.packet.getId());
+        if (priority == PacketRegistry.BARRIER) {
+            epoch.barrier = packet;
+            epochs.add(new Epoch());
+            barriers++;
+        } else {
+            PacketDeque deque = epoch.classes[priority];
+            if (deque == null) {
+                deque = new PacketDeque();
+                epoch.classes[priority] = deque;
+            }
+            deque.add(packet);
+        }
+        size++;
+    }
+
+    public CachedPacket poll() {
+        while (size > 0) {
+            Epoch epoch = epochs.getFirst();
+            for (PacketDeque deque : epoch.classes) {
+                if (deque != null && !deque.isEmpty()) {
+                    size--;
+                    return deque.poll();
+                }
+            }
+
+            // Epoch drained, pass its barrier, only the last epoch has none
+            if (epoch.barrier == null) {
+                return null;
+            }
+            epochs.removeFirst();
+            size--;
+            barriers--;
+            return epoch.barrier;
+        }
+        return null;
+    }
+
+    /**
+     * Whether a world load progress packet is still queued, in which case the client did not enter the world yet.
+     */
+    public boolean hasPendingBarrier() {
+        return barriers > 0;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+}
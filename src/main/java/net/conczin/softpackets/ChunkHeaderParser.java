@@ -3,83 +3,154 @@ package net.conczin.softpackets;
 import com.hypixel.hytale.math.vector.Vector3d;
 import com.hypixel.hytale.protocol.CachedPacket;
 import com.hypixel.hytale.protocol.Packet;
-import com.hypixel.hytale.protocol.Vector3i;
 import com.hypixel.hytale.protocol.packets.world.*;
 import io.netty.buffer.ByteBuf;
 
-import java.lang.reflect.Field;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 
+/**
+ * Reads chunk coordinates from chunk packets into packed keys.
+ * A key holds x and z in 28 bits each and y in 8 bits, where y = -1 marks packets covering a whole column.
+ */
 public class ChunkHeaderParser {
-    private static ByteBuf getCachedBytes(CachedPacket<?> packet) {
+    public static final long NO_CHUNK = Long.MIN_VALUE;
+
+    private static String failure;
+    private static final VarHandle CACHED_BYTES = findCachedBytes();
+
+    private static VarHandle findCachedBytes() {
         try {
-            Field field = CachedPacket.class.getDeclaredField("cachedBytes");
-            field.setAccessible(true);
-            return (ByteBuf) field.get(packet);
+            return MethodHandles.privateLookupIn(CachedPacket.class, MethodHandles.lookup())
+                    .findVarHandle(CachedPacket.class, "cachedBytes", ByteBuf.class);
         } catch (NoSuchFieldException | IllegalAccessException e) {
-            throw new RuntimeException(e);
+            failure = e.toString();
+            return null;
+        }
+    }
+
+    /**
+     * Resolves the accessor to the cached packet bytes, chunk packets are not throttled if that fails.
+     */
+    public static void init() {
+        if (CACHED_BYTES == null) {
+            Main.LOGGER.atWarning().log("Cannot read cached chunk packets, chunk packets will not be throttled - " + failure);
+        }
+    }
+
+    public static boolean isAvailable() {
+        return CACHED_BYTES != null;
+    }
+
+    static ByteBuf getCachedBytes(CachedPacket<?> packet) {
+        return CACHED_BYTES == null ? null : (ByteBuf) CACHED_BYTES.get(packet);
+    }
+
+    /**
+     * Capacity of the buffer backing an encoded packet, or -1 if the packet is not encoded yet.
+     */
+    public static int getCachedCapacity(Packet packet) {
+        if (packet instanceof CachedPacket<?> cachedPacket) {
+            ByteBuf buf = getCachedBytes(cachedPacket);
+            return buf == null ? -1 : buf.capacity();
         }
+        return -1;
+    }
+
+    public static long pack(int x, int y, int z) {
+        return ((long) x << 36) | ((z & 0xFFFFFFFL) << 8) | (y & 0xFFL);
     }
 
-    public static Vector3i fromChunk(CachedPacket<?> packet) {
-        ByteBuf buf = getCachedBytes(packet);
-        return new Vector3i(
-                buf.getIntLE(1),
-                buf.getIntLE(5),
-                buf.getIntLE(9)
-        );
+    public static int x(long key) {
+        return (int) (key >> 36);
     }
 
-    public static Vector3i from2dChunk(CachedPacket<?> packet) {
-        ByteBuf buf = getCachedBytes(packet);
-        return new Vector3i(
-                buf.getIntLE(1),
-                -1,
-                buf.getIntLE(5)
-        );
+    public static int y(long key) {
+        return (byte) key;
     }
 
-    public static Vector3i fromPacket(Packet packet) {
-        if (packet instanceof com.hypixel.hytale.protocol.CachedPacket<?> cachedPacket) {
-            if (packet.getId() == SetChunk.PACKET_ID || packet.getId() == SetFluids.PACKET_ID) {
-                return fromChunk(cachedPacket);
-            } else if (packet.getId() == SetChunkHeightmap.PACKET_ID || packet.getId() == SetChunkTintmap.PACKET_ID || packet.getId() == SetChunkEnvironments.PACKET_ID) {
-                return from2dChunk(cachedPacket);
+    public static int z(long key) {
+        return (int) (key << 28 >> 36);
+    }
+
+    public static long columnKey(int x, int z) {
+        return pack(x, 0, z);
+    }
+
+    public static long column(long key) {
+        return key & ~0xFFL;
+    }
+
+    public static long fromPacket(Packet packet) {
+        int id = packet.getId();
+        if (packet instanceof CachedPacket<?> cachedPacket) {
+            if (id == SetChunk.PACKET_ID || id == SetFluids.PACKET_ID) {
+                ByteBuf buf = getCachedBytes(cachedPacket);
+                return buf == null ? NO_CHUNK : pack(buf.getIntLE(1), buf.getIntLE(5), buf.getIntLE(9));
+            } else if (id == SetChunkHeightmap.PACKET_ID || id == SetChunkTintmap.PACKET_ID || id == SetChunkEnvironments.PACKET_ID) {
+                ByteBuf buf = getCachedBytes(cachedPacket);
+                return buf == null ? NO_CHUNK : pack(buf.getIntLE(1), -1, buf.getIntLE(5));
             }
         } else if (packet instanceof SetChunk setChunk) {
-            return new Vector3i(setChunk.x, setChunk.y, setChunk.z);
+            return pack(setChunk.x, setChunk.y, setChunk.z);
         } else if (packet instanceof SetFluids setFluids) {
-            return new Vector3i(setFluids.x, setFluids.y, setFluids.z);
+            return pack(setFluids.x, setFluids.y, setFluids.z);
         } else if (packet instanceof SetChunkHeightmap setChunkHeightmap) {
-            return new Vector3i(setChunkHeightmap.x, 0, setChunkHeightmap.z);
+            return pack(setChunkHeightmap.x, -1, setChunkHeightmap.z);
         } else if (packet instanceof SetChunkTintmap setChunkTintmap) {
-            return new Vector3i(setChunkTintmap.x, 0, setChunkTintmap.z);
+            return pack(setChunkTintmap.x, -1, setChunkTintmap.z);
         } else if (packet instanceof SetChunkEnvironments setChunkEnvironments) {
-            return new Vector3i(setChunkEnvironments.x, 0, setChunkEnvironments.z);
+            return pack(setChunkEnvironments.x, -1, setChunkEnvironments.z);
         }
-        return null;
+        return NO_CHUNK;
     }
 
-    public static Vector3i fromUnloadPacket(Packet packet) {
+    public static long fromUnloadPacket(Packet packet) {
         if (packet instanceof CachedPacket<?> cachedPacket) {
             if (packet.getId() == UnloadChunk.PACKET_ID) {
-                ByteBuf buffer = getCachedBytes(cachedPacket);
-                return new Vector3i(
-                        buffer.getIntLE(0),
-                        -1,
-                        buffer.getIntLE(4)
-                );
+                ByteBuf buf = getCachedBytes(cachedPacket);
+                return buf == null ? NO_CHUNK : pack(buf.getIntLE(0), -1, buf.getIntLE(4));
             }
         } else if (packet instanceof UnloadChunk unloadChunk) {
-            return new Vector3i(unloadChunk.chunkX, 0, unloadChunk.chunkZ);
+            return pack(unloadChunk.chunkX, -1, unloadChunk.chunkZ);
+        }
+        return NO_CHUNK;
+    }
+
+    /**
+     * Hash of the bytes of an encoded packet, 0 if it is not encoded.
+     */
+    public static long hashOf(Packet packet) {
+        if (packet instanceof CachedPacket<?> cachedPacket) {
+            ByteBuf buf = getCachedBytes(cachedPacket);
+            if (buf != null) {
+                return hash(buf);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 64-bit hash of the readable bytes, used to tell versions of the same chunk apart.
+     */
+    public static long hash(ByteBuf buf) {
+        long hash = 0x9E3779B97F4A7C15L ^ buf.readableBytes();
+        int i = buf.readerIndex();
+        int end = buf.writerIndex();
+        for (; i + 8 <= end; i += 8) {
+            hash = Long.rotateLeft(hash ^ buf.getLongLE(i) * 0xC2B2AE3D27D4EB4FL, 31) * 0x9E3779B97F4A7C15L;
+        }
+        for (; i < end; i++) {
+            hash = (hash ^ buf.getByte(i)) * 0x100000001B3L;
         }
-        return null;
+        return hash ^ (hash >>> 29);
     }
 
-    public static double distanceTo3dSquared(Vector3i chunkPos, Vector3d point) {
-        return (
-                Math.pow(point.x - (chunkPos.x * 32 + 16), 2) +
-                (chunkPos.y == -1 ? 0 : Math.pow(point.y - (chunkPos.y * 32 + 16), 2)) +
-                Math.pow(point.z - (chunkPos.z * 32 + 16), 2)
-        );
+    public static double distanceTo3dSquared(long key, Vector3d point) {
+        double dx = point.x - (x(key) * 32 + 16);
+        double dz = point.z - (z(key) * 32 + 16);
+        int y = y(key);
+        double dy = y == -1 ? 0 : point.y - (y * 32 + 16);
+        return dx * dx + dy * dy + dz * dz;
     }
 }
@@ -0,0 +1,279 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.math.vector.Vector3d;
+import net.conczin.softpackets.QueuedPacketSenderSystem.CachedPacket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Chunk packets bucketed by their Chebyshev ring distance to the player's chunk or the chunk the player is heading to,
+ * whichever is closer. Chunks inside the view cone are pulled further in.
+ * Moving the center does not rebuild the queue, rings are re-bucketed lazily from the inside out while polling.
+ */
+public class ChunkRingQueue {
+    public static final int MAX_RING = 128;
+    public static final int MAX_LEAD = 8;
+
+    private static final int VIEW_SECTORS = 8;
+    private static final double VIEW_CONE_COS = Math.cos(Math.toRadians(45));
+    private static final double VIEW_WEIGHT = 0.6;
+
+    // Share of a sector the view has to turn past its border before the sector changes, so looking along a border does not flip it
+    private static final double SECTOR_HYSTERESIS = 0.25;
+
+    private final PacketDeque[] rings = new PacketDeque[MAX_RING + 1];
+    private final Metrics metrics;
+
+    // Physical entries, including dropped ones not yet skipped
+    private int size = 0;
+
+    // No ring below this one holds entries
+    private int lowest = MAX_RING + 1;
+
+    // Rings up to this one are bucketed for the current center
+    private int settled = MAX_RING;
+
+    // How far (in rings) entries above the settled rings may be off
+    private int drift = 0;
+
+    private int centerX;
+    private int centerY;
+    private int centerZ;
+
+    // Predicted chunk of the player
+    private int leadX;
+    private int leadY;
+    private int leadZ;
+
+    // Quantized horizontal view direction, -1 if unknown
+    private int sector = -1;
+    private double lookX;
+    private double lookZ;
+
+    public ChunkRingQueue(Vector3d position, Metrics metrics) {
+        this.metrics = metrics;
+        this.centerX = toChunk(position.x);
+        this.centerY = toChunk(position.y);
+        this.centerZ = toChunk(position.z);
+        this.leadX = centerX;
+        this.leadY = centerY;
+        this.leadZ = centerZ;
+    }
+
+    public static int toChunk(double block) {
+        return (int) Math.floor(block / 32);
+    }
+
+    public void add(CachedPacket packet) {
+        insert(packet, ringOf(packet.chunkKey));
+        size++;
+    }
+
+    private void insert(CachedPacket packet, int ring) {
+        PacketDeque deque = rings[ring];
+        if (deque == null) {
+            deque = new PacketDeque();
+            rings[ring] = deque;
+        }
+        deque.add(packet);
+        if (ring < lowest) {
+            lowest = ring;
+        }
+    }
+
+    /**
+     * Moves the center to the chunk containing the given position.
+     *
+     * @param predicted where the player is expected to be soon, at most {@link #MAX_LEAD} chunks ahead
+     * @param direction the view direction, or null if unknown
+     * @return whether the center, the predicted chunk or the view direction changed
+     */
+    public boolean recenter(Vector3d position, Vector3d predicted, Vector3d direction) {
+        int x = toChunk(position.x);
+        int y = toChunk(position.y);
+        int z = toChunk(position.z);
+        int px = clamp(toChunk(predicted.x), x);
+        int py = clamp(toChunk(predicted.y), y);
+        int pz = clamp(toChunk(predicted.z), z);
+        int s = sectorOf(direction);
+        if (x == centerX && y == centerY && z == centerZ && px == leadX && py == leadY && pz == leadZ && s == sector) {
+            return false;
+        }
+
+        // Turning only pulls entries into the cone, which the reach of each ring already covers
+        int moved = Math.max(distance(x, y, z, centerX, centerY, centerZ), distance(px, py, pz, leadX, leadY, leadZ));
+        if (s != sector) {
+            sector = s;
+            lookX = s < 0 ? 0 : Math.cos(s * 2 * Math.PI / VIEW_SECTORS);
+            lookZ = s < 0 ? 0 : Math.sin(s * 2 * Math.PI / VIEW_SECTORS);
+        }
+        drift = Math.min(MAX_RING, settled >= MAX_RING ? moved : drift + moved);
+        settled = -1;
+
+        centerX = x;
+        centerY = y;
+        centerZ = z;
+        leadX = px;
+        leadY = py;
+        leadZ = pz;
+        return true;
+    }
+
+    private static int clamp(int predicted, int center) {
+        return Math.max(center - MAX_LEAD, Math.min(center + MAX_LEAD, predicted));
+    }
+
+    private static int distance(int x0, int y0, int z0, int x1, int y1, int z1) {
+        return Math.max(Math.abs(x0 - x1), Math.max(Math.abs(y0 - y1), Math.abs(z0 - z1)));
+    }
+
+    private int sectorOf(Vector3d direction) {
+        if (direction == null || direction.x * direction.x + direction.z * direction.z < 1.0e-6) {
+            return -1;
+        }
+        double width = 2 * Math.PI / VIEW_SECTORS;
+        double angle = Math.atan2(direction.z, direction.x);
+        if (sector >= 0 && Math.abs(Math.IEEEremainder(angle - sector * width, 2 * Math.PI)) < width * (0.5 + SECTOR_HYSTERESIS)) {
+            return sector;
+        }
+        return Math.floorMod((int) Math.round(angle / width), VIEW_SECTORS);
+    }
+
+    public int ringOf(long chunkKey) {
+        int x = ChunkHeaderParser.x(chunkKey);
+        int y = ChunkHeaderParser.y(chunkKey);
+        int z = ChunkHeaderParser.z(chunkKey);
+        int ring = Math.min(ringTo(x, y, z, centerX, centerY, centerZ), ringTo(x, y, z, leadX, leadY, leadZ));
+
+        // Pull in chunks the player is looking at
+        if (sector >= 0 && ring > 1) {
+            int dx = x - centerX;
+            int dz = z - centerZ;
+            double along = dx * lookX + dz * lookZ;
+            if (along > 0 && along * along >= (dx * dx + dz * dz) * VIEW_CONE_COS * VIEW_CONE_COS) {
+                ring = (int) (ring * VIEW_WEIGHT);
+            }
+        }
+        return Math.min(ring, MAX_RING);
+    }
+
+    private static int ringTo(int x, int y, int z, int cx, int cy, int cz) {
+        int ring = Math.max(Math.abs(x - cx), Math.abs(z - cz));
+        return y == -1 ? ring : Math.max(ring, Math.abs(y - cy));
+    }
+
+    public CachedPacket poll() {
+        return poll(MAX_RING);
+    }
+
+    /**
+     * Polls the nearest entry, but only if it lies within the given ring.
+     */
+    public CachedPacket poll(int maxRing) {
+        while (size > 0) {
+            while (lowest <= MAX_RING && (rings[lowest] == null || rings[lowest].isEmpty())) {
+                lowest++;
+            }
+
+            // Entries of outer rings may have moved closer than the ring we are about to poll
+            int reach = Math.min(MAX_RING, reach(Math.min(lowest, maxRing)) + drift);
+            if (settled < reach) {
+                settle(reach);
+                continue;
+            }
+
+            if (lowest > maxRing) {
+                return null;
+            }
+
+            CachedPacket packet = rings[lowest].poll();
+            size--;
+            if (!packet.dropped) {
+                return packet;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The outermost ring whose entries may belong to the given ring once re-bucketed, before adding the drift.
+     * An entry moving into the view cone is pulled in to {@link #VIEW_WEIGHT} of its ring, not just by the distance moved.
+     */
+    private int reach(int ring) {
+        return sector >= 0 ? (int) Math.ceil((ring + 1) / VIEW_WEIGHT) : ring;
+    }
+
+    /**
+     * Polls an entry of the outermost ring the filter accepts, which may be off by the current drift.
+     * Entries passed over stay queued.
+     */
+    public CachedPacket pollFarthest(Predicate<CachedPacket> filter) {
+        List<CachedPacket> kept = new ArrayList<>();
+        CachedPacket found = null;
+        for (int ring = MAX_RING; ring >= lowest && size > 0 && found == null; ring--) {
+            PacketDeque deque = rings[ring];
+            if (deque == null) continue;
+            CachedPacket packet;
+            while ((packet = deque.pollLast()) != null) {
+                size--;
+                if (packet.dropped) continue;
+                if (filter.test(packet)) {
+                    found = packet;
+                    break;
+                }
+                kept.add(packet);
+            }
+        }
+        for (CachedPacket packet : kept) {
+            add(packet);
+        }
+        return found;
+    }
+
+    /**
+     * The innermost ring holding entries, approximate while the rings are not settled.
+     */
+    public int lowestRing() {
+        while (lowest <= MAX_RING && (rings[lowest] == null || rings[lowest].isEmpty())) {
+            lowest++;
+        }
+        return lowest;
+    }
+
+    private void settle(int limit) {
+        long time = System.nanoTime();
+        limit = Math.min(MAX_RING, limit);
+        while (settled < limit) {
+            settled++;
+            PacketDeque deque = rings[settled];
+            if (deque == null) continue;
+            for (int i = deque.size(); i > 0; i--) {
+                CachedPacket packet = deque.poll();
+                if (packet.dropped) {
+                    size--;
+                } else {
+                    insert(packet, ringOf(packet.chunkKey));
+                }
+            }
+        }
+        metrics.timeSorted.add(System.nanoTime() - time);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        for (PacketDeque deque : rings) {
+            if (deque != null) {
+                deque.clear();
+            }
+        }
+        size = 0;
+        lowest = MAX_RING + 1;
+        settled = MAX_RING;
+        drift = 0;
+    }
+}
@@ -0,0 +1,25 @@
+package net.conczin.softpackets;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Time source of the scheduler. The system clock in game, the replay tool swaps in a virtual clock
+ * to run recorded traffic faster than real time.
+ */
+public final class Clock {
+    private static LongSupplier source = System::nanoTime;
+
+    private Clock() {
+    }
+
+    public static long nanoTime() {
+        return source.getAsLong();
+    }
+
+    /**
+     * Replaces the time source, before any scheduler is created.
+     */
+    public static void set(LongSupplier source) {
+        Clock.source = source;
+    }
+}
@@ -0,0 +1,166 @@
+package net.conczin.softpackets;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations over a sliding window, with fixed memory and no allocation per sample.
+ * Buckets are log-linear with four sub-buckets per power of two, so quantiles are accurate to about 25%.
+ * The window is split into slots, the oldest slot is reset once its time comes around again.
+ * Cumulative counts since creation are kept as well, for histograms aggregated by the monitoring system.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 252;
+    private static final int SLOTS = 6;
+    private static final long SLOT_NANOS = 10_000_000_000L;
+
+    // Bounds of the cumulative histogram, powers of two nanoseconds from about 1 ms to 69 s
+    private static final int MIN_BOUND_EXPONENT = 20;
+    private static final int MAX_BOUND_EXPONENT = 36;
+    public static final int BOUNDS = MAX_BOUND_EXPONENT - MIN_BOUND_EXPONENT + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SLOTS * BUCKETS);
+    private final AtomicLongArray maxima = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray epochs = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray totals = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int slot = 0; slot < SLOTS; slot++) {
+            epochs.set(slot, -1);
+        }
+    }
+
+    private static int bucketOf(long nanos) {
+        if (nanos < 4) {
+            return (int) Math.max(0, nanos);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        return 4 * (exponent - 1) + (int) ((nanos >>> (exponent - 2)) & 3);
+    }
+
+    private static long lowerBoundOf(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int exponent = bucket / 4 + 1;
+        return (4L + bucket % 4) << (exponent - 2);
+    }
+
+    /**
+     * Upper bound of a cumulative histogram bucket in nanoseconds.
+     */
+    public static long getBound(int index) {
+        return 1L << (MIN_BOUND_EXPONENT + index);
+    }
+
+    /**
+     * Seconds covered by the window.
+     */
+    public static long getWindowSeconds() {
+        return SLOTS * SLOT_NANOS / 1_000_000_000L;
+    }
+
+    public void record(long nanos, long now) {
+        long epoch = now / SLOT_NANOS;
+        int slot = (int) (epoch % SLOTS);
+        long current = epochs.get(slot);
+        if (current != epoch && epochs.compareAndSet(slot, current, epoch)) {
+            // Samples racing with the reset may get lost
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(slot * BUCKETS + i, 0);
+            }
+            maxima.set(slot, 0);
+        }
+
+        int bucket = bucketOf(nanos);
+        counts.incrementAndGet(slot * BUCKETS + bucket);
+        totals.incrementAndGet(bucket);
+        totalNanos.add(nanos);
+        long max;
+        while (nanos > (max = maxima.get(slot)) && !maxima.compareAndSet(slot, max, nanos)) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private boolean isLive(int slot, long epoch) {
+        long e = epochs.get(slot);
+        return e >= 0 && e > epoch - SLOTS;
+    }
+
+    public long getCount(long now) {
+        long epoch = now / SLOT_NANOS;
+        long count = 0;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (isLive(slot, epoch)) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    count += counts.get(slot * BUCKETS + i);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The given quantile of the samples within the window in nanoseconds, 0 if there are none.
+     * Reports the upper bound of the bucket the quantile falls into.
+     */
+    public long getQuantile(double quantile, long now) {
+        long epoch = now / SLOT_NANOS;
+        long total = getCount(now);
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                if (isLive(slot, epoch)) {
+                    seen += counts.get(slot * BUCKETS + i);
+                }
+            }
+            if (seen >= rank) {
+                return Math.min(i + 1 < BUCKETS ? lowerBoundOf(i + 1) - 1 : Long.MAX_VALUE, getMax(now));
+            }
+        }
+        return getMax(now);
+    }
+
+    /**
+     * Samples since creation below each {@link #getBound bound}, followed by the count of all samples.
+     */
+    public long[] getCumulativeCounts() {
+        long[] cumulative = new long[BOUNDS + 1];
+        long count = 0;
+        int bucket = 0;
+        for (int i = 0; i < BOUNDS; i++) {
+            // The first bucket of each power of two starts at its bound
+            for (int end = bucketOf(getBound(i)); bucket < end; bucket++) {
+                count += totals.get(bucket);
+            }
+            cumulative[i] = count;
+        }
+        for (; bucket < BUCKETS; bucket++) {
+            count += totals.get(bucket);
+        }
+        cumulative[BOUNDS] = count;
+        return cumulative;
+    }
+
+    /**
+     * Sum of all samples since creation in nanoseconds.
+     */
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getMax(long now) {
+        long epoch = now / SLOT_NANOS;
+        long max = 0;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (isLive(slot, epoch)) {
+                max = Math.max(max, maxima.get(slot));
+            }
+        }
+        return max;
+    }
+}
@@ -1,28 +1,46 @@
 package net.conczin.softpackets;
 
+import com.hypixel.hytale.math.vector.Vector3d;
 import com.hypixel.hytale.protocol.packets.worldmap.MapChunk;
 import com.hypixel.hytale.protocol.packets.worldmap.UpdateWorldMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
+import it.unimi.dsi.fastutil.longs.LongIterator;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
+/**
+ * Pending world map images, sent nearest to the player first.
+ * Keys are bucketed by Chebyshev ring distance, removed or already sent keys are skipped lazily.
+ */
 public class LazyWorldMap {
-    private static final int CHUNK_SIZE = 5;
+    private static final int MAX_RING = 256;
 
-    private final Map<Long, MapChunk> chunks = new HashMap<>();
+    // Rebucket once the player moved this many chunks away from the center the rings were built for
+    private static final int REBUCKET_DISTANCE = 4;
 
-    public synchronized UpdateWorldMap filter(UpdateWorldMap packet) {
+    private final Long2ObjectOpenHashMap<MapChunk> chunks = new Long2ObjectOpenHashMap<>();
+    private final LongArrayFIFOQueue[] rings = new LongArrayFIFOQueue[MAX_RING + 1];
+    private int lowest = MAX_RING + 1;
+
+    private int centerX;
+    private int centerZ;
+
+    public LazyWorldMap(Vector3d position) {
+        this.centerX = ChunkRingQueue.toChunk(position.x);
+        this.centerZ = ChunkRingQueue.toChunk(position.z);
+    }
+
+    /**
+     * Strips all images from an update, the removals and markers are sent right away.
+     */
+    public static UpdateWorldMap filter(UpdateWorldMap packet) {
         List<MapChunk> filtered = new ArrayList<>();
         if (packet.chunks != null) {
             for (MapChunk chunk : packet.chunks) {
-                long key = (((long) chunk.chunkX) << 32) ^ (chunk.chunkZ & 0xffffffffL);
                 if (chunk.image == null) {
-                    chunks.remove(key);
                     filtered.add(chunk);
-                } else {
-                    chunks.put(key, chunk);
                 }
             }
         }
@@ -33,18 +51,84 @@ public class LazyWorldMap {
         );
     }
 
-    public synchronized UpdateWorldMap getNextPacket() {
+    /**
+     * Queues the images of an update and drops pending images that got removed since.
+     * A newer image for a pending coordinate replaces it and keeps its place.
+     */
+    public void update(UpdateWorldMap packet) {
+        if (packet.chunks == null) return;
+        for (MapChunk chunk : packet.chunks) {
+            long key = ChunkHeaderParser.columnKey(chunk.chunkX, chunk.chunkZ);
+            if (chunk.image == null) {
+                chunks.remove(key);
+            } else if (chunks.put(key, chunk) == null) {
+                enqueue(key);
+            }
+        }
+    }
+
+    private void enqueue(long key) {
+        int ring = Math.min(MAX_RING, Math.max(
+                Math.abs(ChunkHeaderParser.x(key) - centerX),
+                Math.abs(ChunkHeaderParser.z(key) - centerZ)
+        ));
+        LongArrayFIFOQueue queue = rings[ring];
+        if (queue == null) {
+            queue = new LongArrayFIFOQueue();
+            rings[ring] = queue;
+        }
+        queue.enqueue(key);
+        if (ring < lowest) {
+            lowest = ring;
+        }
+    }
+
+    public void recenter(Vector3d position) {
+        int x = ChunkRingQueue.toChunk(position.x);
+        int z = ChunkRingQueue.toChunk(position.z);
+        if (Math.max(Math.abs(x - centerX), Math.abs(z - centerZ)) < REBUCKET_DISTANCE) {
+            return;
+        }
+        centerX = x;
+        centerZ = z;
+
+        // Rebucket without sorting, the queues keep their backing arrays
+        for (LongArrayFIFOQueue queue : rings) {
+            if (queue != null) {
+                queue.clear();
+            }
+        }
+        lowest = MAX_RING + 1;
+        LongIterator iterator = chunks.keySet().iterator();
+        while (iterator.hasNext()) {
+            enqueue(iterator.nextLong());
+        }
+    }
+
+    /**
+     * Builds the next update from the nearest images, up to the given number of serialized bytes.
+     */
+    public UpdateWorldMap getNextPacket(long byteBudget) {
         if (chunks.isEmpty()) {
             return null;
         }
 
-        List<MapChunk> chunkList = new ArrayList<>(CHUNK_SIZE);
-        while (chunkList.size() < CHUNK_SIZE && !chunks.isEmpty()) {
-            long key = chunks.keySet().iterator().next();
-            chunkList.add(chunks.remove(key));
+        List<MapChunk> chunkList = new ArrayList<>();
+        long bytes = 0;
+        while (bytes < byteBudget && lowest <= MAX_RING) {
+            LongArrayFIFOQueue queue = rings[lowest];
+            if (queue == null || queue.isEmpty()) {
+                lowest++;
+                continue;
+            }
+            MapChunk chunk = chunks.remove(queue.dequeueLong());
+            if (chunk != null) {
+                chunkList.add(chunk);
+                bytes += chunk.computeSize();
+            }
         }
 
-        return new UpdateWorldMap(
+        return chunkList.isEmpty() ? null : new UpdateWorldMap(
                 chunkList.toArray(MapChunk[]::new),
                 null,
                 null
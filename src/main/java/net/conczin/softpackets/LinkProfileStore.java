@@ -0,0 +1,175 @@
+package net.conczin.softpackets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What earlier sessions learned about each player's link, so a rejoining player starts at the rate their link sustained before.
+ * Kept in an append-only file of fixed-size little-endian records, the newest record of a player wins.
+ * The file is read on a background thread at startup and rewritten once most of its records are outdated,
+ * every disconnect appends a record from the same thread.
+ */
+public class LinkProfileStore {
+    private static final long MAGIC = 0x31534B4E494C5053L;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 40;
+    private static final long MAX_AGE = Duration.ofDays(30).toMillis();
+
+    /**
+     * @param rate            bytes per second the link sustained while data was waiting
+     * @param minRtt          round trip time baseline in microseconds, 0 if unknown
+     * @param bufferFullShare share of the time the channel buffer was full while data was waiting
+     */
+    public record LinkProfile(double rate, double minRtt, double bufferFullShare, long savedMillis) {
+    }
+
+    private final Path file;
+    private final Map<UUID, LinkProfile> profiles = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final CompletableFuture<Void> loaded;
+
+    // Only used by the executor
+    private FileChannel channel;
+
+    public LinkProfileStore(Path file) {
+        this.file = file;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SoftPackets-LinkProfiles");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.loaded = CompletableFuture.runAsync(this::load, executor);
+    }
+
+    /**
+     * The player's profile once the store is loaded, completed with null if there is none.
+     */
+    public CompletableFuture<LinkProfile> get(UUID uuid) {
+        return loaded.thenApply(ignored -> profiles.get(uuid));
+    }
+
+    public void save(UUID uuid, LinkProfile profile) {
+        profiles.put(uuid, profile);
+        try {
+            executor.execute(() -> append(uuid, profile));
+        } catch (RejectedExecutionException e) {
+            // Closed while shutting down
+        }
+    }
+
+    public int size() {
+        return profiles.size();
+    }
+
+    private void load() {
+        try {
+            Files.createDirectories(file.getParent());
+            Map<UUID, LinkProfile> stored = new HashMap<>();
+            long records = 0;
+            boolean rewrite = true;
+            if (Files.exists(file)) {
+                ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+                if (buffer.remaining() >= HEADER_SIZE && buffer.getLong() == MAGIC && buffer.getInt() == VERSION && buffer.getInt() == RECORD_SIZE) {
+                    // A record torn by a crash is dropped with the next rewrite
+                    rewrite = buffer.remaining() % RECORD_SIZE != 0;
+                    long oldest = System.currentTimeMillis() - MAX_AGE;
+                    while (buffer.remaining() >= RECORD_SIZE) {
+                        int start = buffer.position();
+                        UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+                        long savedMillis = buffer.getLong();
+                        LinkProfile profile = new LinkProfile(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), savedMillis);
+                        buffer.position(start + RECORD_SIZE);
+                        records++;
+                        if (savedMillis >= oldest) {
+                            stored.put(uuid, profile);
+                        } else {
+                            stored.remove(uuid);
+                        }
+                    }
+                } else {
+                    Main.LOGGER.atWarning().log("Ignoring unreadable link profiles in " + file);
+                }
+            }
+
+            // Profiles saved while loading are newer
+            stored.forEach(profiles::putIfAbsent);
+            if (rewrite || records > 2L * profiles.size()) {
+                compact();
+            }
+            channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException | RuntimeException e) {
+            Main.LOGGER.atWarning().log("Failed to load link profiles from " + file + " - " + e);
+        }
+    }
+
+    private void compact() throws IOException {
+        Map<UUID, LinkProfile> snapshot = Map.copyOf(profiles);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + snapshot.size() * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(MAGIC).putInt(VERSION).putInt(RECORD_SIZE);
+        snapshot.forEach((uuid, profile) -> put(buffer, uuid, profile));
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temporary, buffer.array());
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void append(UUID uuid, LinkProfile profile) {
+        if (channel == null) return;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        put(buffer, uuid, profile);
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            Main.LOGGER.atWarning().log("Failed to save link profile to " + file + " - " + e);
+        }
+    }
+
+    private static void put(ByteBuffer buffer, UUID uuid, LinkProfile profile) {
+        int start = buffer.position();
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+        buffer.putLong(profile.savedMillis());
+        buffer.putFloat((float) profile.rate());
+        buffer.putFloat((float) profile.minRtt());
+        buffer.putFloat((float) profile.bufferFullShare());
+        buffer.position(start + RECORD_SIZE);
+    }
+
+    /**
+     * Writes the pending profiles and closes the file.
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            Main.LOGGER.atWarning().log("Failed to close link profiles " + file + " - " + e);
+        }
+    }
+}
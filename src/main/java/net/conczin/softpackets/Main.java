@@ -18,6 +18,10 @@ public class Main extends JavaPlugin {
     public static final HytaleLogger LOGGER = HytaleLogger.get("SoftPackets");
 
     private QueuedPacketSenderSystem queue;
+    private PacingEngine pacingEngine;
+    private MetricsExporter metricsExporter;
+    private TrafficRecorder trafficRecorder;
+    private LinkProfileStore linkProfiles;
 
     private final Config<SoftPacketConfig> config = this.withConfig(SoftPacketConfig.CODEC);
 
@@ -28,6 +32,8 @@ public class Main extends JavaPlugin {
 
     @Override
     protected void setup() {
+        ChunkHeaderParser.init();
+
         queue = new QueuedPacketSenderSystem(getConfig());
 
         PacketAdapters.registerOutbound(queue);
@@ -35,6 +41,24 @@ public class Main extends JavaPlugin {
         this.getChunkStoreRegistry().registerSystem(queue);
         this.getCommandRegistry().registerCommand(new NetworkMonitorCommand());
 
+        if (getConfig().isPacingEnabled()) {
+            pacingEngine = new PacingEngine(queue, getConfig().getPacingInterval());
+            pacingEngine.start();
+        }
+
+        metricsExporter = new MetricsExporter(queue);
+        metricsExporter.start(getConfig().getMetricsPort(), getConfig().isMetricsJmx());
+
+        if (getConfig().getTraceSize() > 0) {
+            trafficRecorder = TrafficRecorder.open(getDataDirectory().resolve("traces"), getConfig().getTraceSize());
+            queue.setRecorder(trafficRecorder);
+        }
+
+        if (getConfig().isLinkProfiles()) {
+            linkProfiles = new LinkProfileStore(getDataDirectory().resolve("link-profiles.bin"));
+            queue.setProfileStore(linkProfiles);
+        }
+
         config.save();
 
         // Override connection timeouts to accommodate large modpacks
@@ -45,6 +69,23 @@ public class Main extends JavaPlugin {
         }
     }
 
+    @Override
+    protected void shutdown() {
+        if (pacingEngine != null) {
+            pacingEngine.stop();
+        }
+        if (metricsExporter != null) {
+            metricsExporter.stop();
+        }
+        if (trafficRecorder != null) {
+            queue.setRecorder(null);
+            trafficRecorder.close();
+        }
+        if (linkProfiles != null) {
+            linkProfiles.close();
+        }
+    }
+
     public static Main getInstance() {
         return instance;
     }
@@ -53,6 +94,13 @@ public class Main extends JavaPlugin {
         return queue;
     }
 
+    /**
+     * Where other plugins register their large packets to be throttled.
+     */
+    public PacketRegistry getPacketRegistry() {
+        return queue.packetRegistry;
+    }
+
     public SoftPacketConfig getConfig() {
         return config.get();
     }
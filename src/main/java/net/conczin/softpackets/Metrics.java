@@ -1,12 +1,39 @@
 package net.conczin.softpackets;
 
+import com.hypixel.hytale.protocol.packets.assets.AssetPart;
+import com.hypixel.hytale.protocol.packets.world.*;
+import com.hypixel.hytale.protocol.packets.worldmap.UpdateWorldMap;
+import it.unimi.dsi.fastutil.ints.Int2LongMap;
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
 public class Metrics {
+    private static final Map<Integer, String> packetNames = Map.of(
+            SetChunk.PACKET_ID, "SetChunk",
+            SetChunkHeightmap.PACKET_ID, "SetChunkHeightmap",
+            SetChunkTintmap.PACKET_ID, "SetChunkTintmap",
+            SetChunkEnvironments.PACKET_ID, "SetChunkEnvironments",
+            SetFluids.PACKET_ID, "SetFluids",
+            UpdateWorldMap.PACKET_ID, "UpdateWorldMap",
+            AssetPart.PACKET_ID, "AssetPart"
+    );
+
     SoftPacketConfig config;
 
     long minimumBucket;
     long maximumBucket;
+    long urgentBucket;
+
+    // Difference between measured and estimated bytes, applied to the buckets on the next tick
+    private final AtomicLong correction = new AtomicLong();
 
-    long baseBytes = 0;
+    // Written by the network threads
+    private final LongAdder baseBytes = new LongAdder();
     double averageBaseBandwidth = 0;
     double averageBaseBandwidthWindow = 0;
 
@@ -15,41 +42,70 @@ public class Metrics {
 
     long lastNano;
 
-    public long throttlePing = 0;
-    public long throttleBuffer = 0;
-    public long throttleMax = 0;
-    public long drops = 0;
-    public long prioritized = 0;
-
-    public long timeSorted = 0;
+    public final LongAdder throttlePing = new LongAdder();
+    public final LongAdder throttleBuffer = new LongAdder();
+    public final LongAdder throttleMax = new LongAdder();
+    public final LongAdder throttleUrgent = new LongAdder();
+    public final LongAdder drops = new LongAdder();
+    public final LongAdder prioritized = new LongAdder();
+    public final LongAdder coalesced = new LongAdder();
+    public final LongAdder coalescedBytes = new LongAdder();
+    public final LongAdder unchanged = new LongAdder();
+    public final LongAdder unchangedBytes = new LongAdder();
+    public final LongAdder evictions = new LongAdder();
+    public final LongAdder evictedBytes = new LongAdder();
+
+    // Per packet id, sent packets and their estimated and measured bytes
+    private final AtomicLongArray packetsById = new AtomicLongArray(SizeEstimator.MAX_PACKET_ID);
+    private final AtomicLongArray estimatedBytesById = new AtomicLongArray(SizeEstimator.MAX_PACKET_ID);
+    private final AtomicLongArray realBytesById = new AtomicLongArray(SizeEstimator.MAX_PACKET_ID);
+    private final AtomicLongArray dropsById = new AtomicLongArray(SizeEstimator.MAX_PACKET_ID);
+
+    // Queueing delay of throttled packets
+    public final LatencyHistogram delays = new LatencyHistogram();
+
+    // Heap held by all queues, shared packets count once
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    public final LongAdder timeSorted = new LongAdder();
+
+    // Recent join to playable times, in nanoseconds
+    private final long[] timesToPlayable = new long[256];
+    private long playablePlayers = 0;
 
     public Metrics(SoftPacketConfig config) {
         this.config = config;
         this.minimumBucket = config.getMinBandwidth();
         this.maximumBucket = config.getMaxBandwidth();
-        this.lastNano = System.nanoTime();
+        this.urgentBucket = config.getUrgentBurst();
+        this.lastNano = Clock.nanoTime();
     }
 
     public void tick() {
-        long time = System.nanoTime();
+        long time = Clock.nanoTime();
         double delta = (time - lastNano) / 1_000_000_000.0;
         lastNano = time;
 
         // Keep track of the average base bandwidth
         averageBaseBandwidthWindow += delta;
         if (averageBaseBandwidthWindow > 1.0) {
-            averageBaseBandwidth = averageBaseBandwidth * 0.9 + baseBytes / averageBaseBandwidthWindow * 0.1;
+            averageBaseBandwidth = averageBaseBandwidth * 0.9 + baseBytes.sumThenReset() / averageBaseBandwidthWindow * 0.1;
             averageBaseBandwidthWindow = 0;
-            baseBytes = 0;
         }
 
+        // Charge the real instead of the estimated size
+        long corrected = correction.getAndSet(0);
+        minimumBucket -= corrected;
+        maximumBucket -= corrected;
+
         // Refill the bucket
-        minimumBucket = Math.min(minimumBucket + (long) (config.getMinBandwidth() * delta), config.getMinBandwidth());
-        maximumBucket = Math.min(maximumBucket + (long) (config.getMaxBandwidth() * delta), config.getMaxBandwidth());
+        minimumBucket = Math.min(minimumBucket + (long) (config.getMinBandwidth() * delta), (long) (config.getMinBandwidth() * config.getBurstDuration()));
+        maximumBucket = Math.min(maximumBucket + (long) (config.getMaxBandwidth() * delta), (long) (config.getMaxBandwidth() * config.getBurstDuration()));
+        urgentBucket = Math.min(urgentBucket + (long) (config.getMaxBandwidth() * delta), config.getUrgentBurst());
     }
 
     public void add(int size, long timestampNanos) {
-        long time = System.nanoTime();
+        long time = Clock.nanoTime();
         long delay = time - timestampNanos;
 
         if (minimumBucket > 0) {
@@ -61,6 +117,47 @@ public class Metrics {
 
         totalPackets += 1;
         totalSeconds += delay / 1_000_000_000.0;
+        delays.record(delay, time);
+    }
+
+    /**
+     * Counts a packet sent to a player, throttled or not, with its estimated size.
+     */
+    public void countPacket(int packetId, int size) {
+        if (packetId >= 0 && packetId < SizeEstimator.MAX_PACKET_ID) {
+            packetsById.incrementAndGet(packetId);
+            estimatedBytesById.addAndGet(packetId, size);
+        }
+    }
+
+    public void countWireBytes(int packetId, long bytes) {
+        if (packetId >= 0 && packetId < SizeEstimator.MAX_PACKET_ID) {
+            realBytesById.addAndGet(packetId, bytes);
+        }
+    }
+
+    public long getPackets(int packetId) {
+        return packetsById.get(packetId);
+    }
+
+    public long getEstimatedBytes(int packetId) {
+        return estimatedBytesById.get(packetId);
+    }
+
+    public long getRealBytes(int packetId) {
+        return realBytesById.get(packetId);
+    }
+
+    public long getDrops(int packetId) {
+        return dropsById.get(packetId);
+    }
+
+    public void addUrgent(int size) {
+        urgentBucket -= size;
+    }
+
+    public void correct(long bytes) {
+        correction.addAndGet(bytes);
     }
 
     public long getMinimumBucket() {
@@ -71,6 +168,10 @@ public class Metrics {
         return maximumBucket;
     }
 
+    public long getUrgentBucket() {
+        return urgentBucket;
+    }
+
     public long getBaseBytes() {
         return (long) averageBaseBandwidth;
     }
@@ -83,7 +184,57 @@ public class Metrics {
         return totalPackets;
     }
 
-    public void addBase(int packetSize) {
-        baseBytes += packetSize;
+    public void addBase(int packetId, int packetSize) {
+        baseBytes.add(packetSize);
+        countPacket(packetId, packetSize);
+    }
+
+    public void retain(long bytes) {
+        retainedBytes.addAndGet(bytes);
+    }
+
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    public synchronized void addTimeToPlayable(long nanos) {
+        timesToPlayable[(int) (playablePlayers++ % timesToPlayable.length)] = nanos;
+    }
+
+    public synchronized long getPlayablePlayers() {
+        return playablePlayers;
+    }
+
+    /**
+     * Quantile of the recent join to playable times in nanoseconds, 0 if no player finished loading yet.
+     */
+    public synchronized long getTimeToPlayable(double quantile) {
+        int n = (int) Math.min(playablePlayers, timesToPlayable.length);
+        if (n == 0) return 0;
+        long[] sorted = Arrays.copyOf(timesToPlayable, n);
+        Arrays.sort(sorted);
+        return sorted[Math.min(n - 1, (int) (quantile * n))];
+    }
+
+    public void addDrop(int packetId) {
+        drops.increment();
+        if (packetId >= 0 && packetId < SizeEstimator.MAX_PACKET_ID) {
+            dropsById.incrementAndGet(packetId);
+        }
+    }
+
+    public Int2LongMap getDropsByType() {
+        Int2LongOpenHashMap dropsByType = new Int2LongOpenHashMap();
+        for (int id = 0; id < SizeEstimator.MAX_PACKET_ID; id++) {
+            long count = dropsById.get(id);
+            if (count > 0) {
+                dropsByType.put(id, count);
+            }
+        }
+        return dropsByType;
+    }
+
+    public static String getPacketName(int packetId) {
+        return packetNames.getOrDefault(packetId, "#" + packetId);
     }
 }
@@ -0,0 +1,363 @@
+package net.conczin.softpackets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the latest {@link MetricsSnapshot} in OpenMetrics text format on a local port and over JMX.
+ */
+public class MetricsExporter implements SoftPacketsMXBean {
+    private static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private final QueuedPacketSenderSystem system;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private ObjectName objectName;
+
+    public MetricsExporter(QueuedPacketSenderSystem system) {
+        this.system = system;
+    }
+
+    public synchronized void start(long port, boolean jmx) {
+        if (port > 0 && server == null) {
+            try {
+                server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), (int) port), 0);
+                executor = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "SoftPackets-Metrics");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                server.setExecutor(executor);
+                server.createContext("/metrics", this::handle);
+                server.start();
+            } catch (IOException e) {
+                Main.LOGGER.atWarning().log("Failed to start metrics endpoint on port " + port + " - " + e);
+                server = null;
+            }
+        }
+
+        if (jmx && objectName == null) {
+            try {
+                objectName = new ObjectName("net.conczin.softpackets:type=Scheduler");
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            } catch (Exception e) {
+                Main.LOGGER.atWarning().log("Failed to register metrics MBean - " + e);
+                objectName = null;
+            }
+        }
+    }
+
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                Main.LOGGER.atWarning().log("Failed to unregister metrics MBean - " + e);
+            }
+            objectName = null;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render(system.getSnapshot()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    public static String render(MetricsSnapshot s) {
+        StringBuilder b = new StringBuilder(4096);
+
+        type(b, "softpackets_bucket_bytes", "gauge", "Bytes left in the bandwidth buckets.");
+        sample(b, "softpackets_bucket_bytes", "bucket", "minimum", s.minimumBucket);
+        sample(b, "softpackets_bucket_bytes", "bucket", "maximum", s.maximumBucket);
+        sample(b, "softpackets_bucket_bytes", "bucket", "urgent", s.urgentBucket);
+
+        type(b, "softpackets_base_bandwidth_bytes", "gauge", "Average bytes per second of packets not throttled.");
+        sample(b, "softpackets_base_bandwidth_bytes", null, null, s.baseBandwidth);
+
+        type(b, "softpackets_throttles", "counter", "Times sending stopped, by reason.");
+        sample(b, "softpackets_throttles_total", "reason", "ping", s.throttlePing);
+        sample(b, "softpackets_throttles_total", "reason", "buffer", s.throttleBuffer);
+        sample(b, "softpackets_throttles_total", "reason", "max", s.throttleMax);
+        sample(b, "softpackets_throttles_total", "reason", "urgent", s.throttleUrgent);
+
+        type(b, "softpackets_packets", "counter", "Packets by outcome.");
+        sample(b, "softpackets_packets_total", "outcome", "throttled", s.totalPackets);
+        sample(b, "softpackets_packets_total", "outcome", "prioritized", s.prioritized);
+        sample(b, "softpackets_packets_total", "outcome", "dropped", s.drops);
+        sample(b, "softpackets_packets_total", "outcome", "coalesced", s.coalesced);
+        sample(b, "softpackets_packets_total", "outcome", "unchanged", s.unchanged);
+        sample(b, "softpackets_packets_total", "outcome", "evicted", s.evictions);
+
+        type(b, "softpackets_saved_bytes", "counter", "Estimated bytes not sent, by reason.");
+        sample(b, "softpackets_saved_bytes_total", "reason", "coalesced", s.coalescedBytes);
+        sample(b, "softpackets_saved_bytes_total", "reason", "unchanged", s.unchangedBytes);
+
+        type(b, "softpackets_retained_bytes", "gauge", "Heap held by all queues.");
+        sample(b, "softpackets_retained_bytes", null, null, s.retainedBytes);
+
+        type(b, "softpackets_sort_seconds", "counter", "Time spent re-ranking queued chunks.");
+        sample(b, "softpackets_sort_seconds_total", null, null, s.sortNanos / 1.0e9);
+
+        type(b, "softpackets_delay_seconds", "histogram", "Queueing delay of throttled packets.");
+        histogram(b, "softpackets_delay_seconds", "", s.delayBuckets, s.delayNanos);
+        type(b, "softpackets_delay_max_seconds", "gauge", "Longest queueing delay over the last " + LatencyHistogram.getWindowSeconds() + " seconds.");
+        sample(b, "softpackets_delay_max_seconds", null, null, s.maxDelay / 1.0e9);
+
+        type(b, "softpackets_type_packets", "counter", "Sent packets by type.");
+        for (MetricsSnapshot.PacketType t : s.packetTypes) {
+            sample(b, "softpackets_type_packets_total", "type", t.name(), t.packets());
+        }
+        type(b, "softpackets_type_estimated_bytes", "counter", "Estimated bytes of sent packets by type.");
+        for (MetricsSnapshot.PacketType t : s.packetTypes) {
+            sample(b, "softpackets_type_estimated_bytes_total", "type", t.name(), t.estimatedBytes());
+        }
+        type(b, "softpackets_type_wire_bytes", "counter", "Measured bytes of sent packets by type.");
+        for (MetricsSnapshot.PacketType t : s.packetTypes) {
+            sample(b, "softpackets_type_wire_bytes_total", "type", t.name(), t.realBytes());
+        }
+        type(b, "softpackets_type_drops", "counter", "Dropped packets by type.");
+        for (MetricsSnapshot.PacketType t : s.packetTypes) {
+            sample(b, "softpackets_type_drops_total", "type", t.name(), t.drops());
+        }
+
+        type(b, "softpackets_player_queued_packets", "gauge", "Packets queued per player.");
+        for (MetricsSnapshot.Player p : s.players) {
+            sample(b, "softpackets_player_queued_packets", player(p), p.packets());
+        }
+        type(b, "softpackets_player_queued_bytes", "gauge", "Estimated bytes queued per player.");
+        for (MetricsSnapshot.Player p : s.players) {
+            sample(b, "softpackets_player_queued_bytes", player(p), p.queuedBytes());
+        }
+        type(b, "softpackets_player_retained_bytes", "gauge", "Heap held per player.");
+        for (MetricsSnapshot.Player p : s.players) {
+            sample(b, "softpackets_player_retained_bytes", player(p), p.retainedBytes());
+        }
+        type(b, "softpackets_player_throughput_bytes", "gauge", "Bytes per second sent per player.");
+        for (MetricsSnapshot.Player p : s.players) {
+            sample(b, "softpackets_player_throughput_bytes", player(p), p.throughput());
+        }
+        type(b, "softpackets_player_rate_bytes", "gauge", "Bytes per second allowed by each player's rate controller.");
+        for (MetricsSnapshot.Player p : s.players) {
+            sample(b, "softpackets_player_rate_bytes", player(p), p.rate());
+        }
+        type(b, "softpackets_player_delay_seconds", "histogram", "Queueing delay per player.");
+        for (MetricsSnapshot.Player p : s.players) {
+            histogram(b, "softpackets_player_delay_seconds", player(p) + ",", p.delayBuckets(), p.delayNanos());
+        }
+
+        b.append("# EOF\n");
+        return b.toString();
+    }
+
+    private static void type(StringBuilder b, String name, String type, String help) {
+        b.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        b.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    }
+
+    private static void sample(StringBuilder b, String name, String label, String value, double sample) {
+        sample(b, name, label == null ? null : label + "=\"" + escape(value) + "\"", sample);
+    }
+
+    private static void sample(StringBuilder b, String name, String labels, double sample) {
+        b.append(name);
+        if (labels != null) {
+            b.append('{').append(labels).append('}');
+        }
+        b.append(' ');
+        if (sample == Math.rint(sample) && Math.abs(sample) < 1.0e15) {
+            b.append((long) sample);
+        } else {
+            b.append(sample);
+        }
+        b.append('\n');
+    }
+
+    /**
+     * Labels of a player's series, names may change or repeat so the UUID identifies the player.
+     */
+    private static String player(MetricsSnapshot.Player p) {
+        return "uuid=\"" + p.uuid() + "\",player=\"" + escape(p.name()) + "\"";
+    }
+
+    /**
+     * Samples of a cumulative histogram, in seconds.
+     *
+     * @param labels labels of the series followed by a comma, or empty
+     */
+    private static void histogram(StringBuilder b, String name, String labels, long[] buckets, long nanos) {
+        for (int i = 0; i < LatencyHistogram.BOUNDS; i++) {
+            sample(b, name + "_bucket", labels + "le=\"" + LatencyHistogram.getBound(i) / 1.0e9 + "\"", buckets[i]);
+        }
+        sample(b, name + "_bucket", labels + "le=\"+Inf\"", buckets[LatencyHistogram.BOUNDS]);
+        String total = labels.isEmpty() ? null : labels.substring(0, labels.length() - 1);
+        sample(b, name + "_count", total, buckets[LatencyHistogram.BOUNDS]);
+        sample(b, name + "_sum", total, nanos / 1.0e9);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private MetricsSnapshot snapshot() {
+        return system.getSnapshot();
+    }
+
+    @Override
+    public long getSnapshotTimestamp() {
+        return snapshot().timestamp;
+    }
+
+    @Override
+    public long getMinimumBucket() {
+        return snapshot().minimumBucket;
+    }
+
+    @Override
+    public long getMaximumBucket() {
+        return snapshot().maximumBucket;
+    }
+
+    @Override
+    public long getUrgentBucket() {
+        return snapshot().urgentBucket;
+    }
+
+    @Override
+    public long getBaseBandwidth() {
+        return snapshot().baseBandwidth;
+    }
+
+    @Override
+    public long getThrottlePing() {
+        return snapshot().throttlePing;
+    }
+
+    @Override
+    public long getThrottleBuffer() {
+        return snapshot().throttleBuffer;
+    }
+
+    @Override
+    public long getThrottleMax() {
+        return snapshot().throttleMax;
+    }
+
+    @Override
+    public long getThrottleUrgent() {
+        return snapshot().throttleUrgent;
+    }
+
+    @Override
+    public long getPrioritized() {
+        return snapshot().prioritized;
+    }
+
+    @Override
+    public long getDrops() {
+        return snapshot().drops;
+    }
+
+    @Override
+    public long getCoalesced() {
+        return snapshot().coalesced;
+    }
+
+    @Override
+    public long getUnchanged() {
+        return snapshot().unchanged;
+    }
+
+    @Override
+    public long getUnchangedBytes() {
+        return snapshot().unchangedBytes;
+    }
+
+    @Override
+    public long getEvictions() {
+        return snapshot().evictions;
+    }
+
+    @Override
+    public long getTotalPackets() {
+        return snapshot().totalPackets;
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        return snapshot().retainedBytes;
+    }
+
+    @Override
+    public long getSortNanos() {
+        return snapshot().sortNanos;
+    }
+
+    @Override
+    public long getDelayP50Nanos() {
+        return snapshot().delays[0];
+    }
+
+    @Override
+    public long getDelayP95Nanos() {
+        return snapshot().delays[1];
+    }
+
+    @Override
+    public long getDelayP99Nanos() {
+        return snapshot().delays[2];
+    }
+
+    @Override
+    public long getDelayMaxNanos() {
+        return snapshot().maxDelay;
+    }
+
+    @Override
+    public int getPlayers() {
+        return snapshot().players.size();
+    }
+
+    @Override
+    public long getQueuedPackets() {
+        long packets = 0;
+        for (MetricsSnapshot.Player p : snapshot().players) {
+            packets += p.packets();
+        }
+        return packets;
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        long bytes = 0;
+        for (MetricsSnapshot.Player p : snapshot().players) {
+            bytes += p.queuedBytes();
+        }
+        return bytes;
+    }
+}
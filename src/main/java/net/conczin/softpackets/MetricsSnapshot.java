@@ -0,0 +1,133 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.server.core.auth.PlayerAuthentication;
+import com.hypixel.hytale.server.core.io.PacketHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Immutable copy of the scheduler state, published by the sender so monitoring never touches live queues.
+ */
+public final class MetricsSnapshot {
+    public static final double[] QUANTILES = {0.5, 0.95, 0.99};
+
+    public final long timestamp;
+
+    public final long minimumBucket;
+    public final long maximumBucket;
+    public final long urgentBucket;
+    public final long baseBandwidth;
+
+    public final long throttlePing;
+    public final long throttleBuffer;
+    public final long throttleMax;
+    public final long throttleUrgent;
+    public final long prioritized;
+    public final long drops;
+    public final long coalesced;
+    public final long coalescedBytes;
+    public final long unchanged;
+    public final long unchangedBytes;
+    public final long evictions;
+    public final long totalPackets;
+    public final long retainedBytes;
+    public final long sortNanos;
+
+    // Delay quantiles in nanoseconds, in the order of QUANTILES
+    public final long[] delays;
+    public final long maxDelay;
+
+    // Cumulative delay histogram since startup, see LatencyHistogram.getCumulativeCounts
+    public final long[] delayBuckets;
+    public final long delayNanos;
+
+    public final List<PacketType> packetTypes;
+    public final List<Player> players;
+
+    public record PacketType(String name, long packets, long estimatedBytes, long realBytes, long drops) {
+    }
+
+    public record Player(UUID uuid, String name, long packets, long queuedBytes, long retainedBytes, long mapChunks,
+                         double throughput, double rate, double bottleneck, double rtt, double minRtt, double weight,
+                         long[] delays, long[] delayBuckets, long delayNanos, boolean playable, boolean admitted) {
+    }
+
+    public MetricsSnapshot(QueuedPacketSenderSystem system, long now) {
+        Metrics metrics = system.metrics;
+        this.timestamp = System.currentTimeMillis();
+
+        this.minimumBucket = metrics.getMinimumBucket();
+        this.maximumBucket = metrics.getMaximumBucket();
+        this.urgentBucket = metrics.getUrgentBucket();
+        this.baseBandwidth = metrics.getBaseBytes();
+
+        this.throttlePing = metrics.throttlePing.sum();
+        this.throttleBuffer = metrics.throttleBuffer.sum();
+        this.throttleMax = metrics.throttleMax.sum();
+        this.throttleUrgent = metrics.throttleUrgent.sum();
+        this.prioritized = metrics.prioritized.sum();
+        this.drops = metrics.drops.sum();
+        this.coalesced = metrics.coalesced.sum();
+        this.coalescedBytes = metrics.coalescedBytes.sum();
+        this.unchanged = metrics.unchanged.sum();
+        this.unchangedBytes = metrics.unchangedBytes.sum();
+        this.evictions = metrics.evictions.sum();
+        this.totalPackets = metrics.getTotalPackets();
+        this.retainedBytes = metrics.getRetainedBytes();
+        this.sortNanos = metrics.timeSorted.sum();
+
+        this.delays = quantiles(metrics.delays, now);
+        this.maxDelay = metrics.delays.getMax(now);
+        this.delayBuckets = metrics.delays.getCumulativeCounts();
+        this.delayNanos = metrics.delays.getTotalNanos();
+
+        List<PacketType> packetTypes = new ArrayList<>();
+        for (int id = 0; id < SizeEstimator.MAX_PACKET_ID; id++) {
+            long packets = metrics.getPackets(id);
+            long drops = metrics.getDrops(id);
+            if (packets > 0 || drops > 0) {
+                packetTypes.add(new PacketType(Metrics.getPacketName(id), packets, metrics.getEstimatedBytes(id), metrics.getRealBytes(id), drops));
+            }
+        }
+        this.packetTypes = List.copyOf(packetTypes);
+
+        // Plain field reads, a queue may change while it is copied
+        List<Player> players = new ArrayList<>();
+        for (Map.Entry<PacketHandler, QueuedPacketSenderSystem.PlayerQueue> entry : system.queues.entrySet()) {
+            PlayerAuthentication auth = entry.getKey().getAuth();
+            if (auth == null) continue;
+            QueuedPacketSenderSystem.PlayerQueue queue = entry.getValue();
+            players.add(new Player(
+                    auth.getUuid(),
+                    auth.getUsername(),
+                    queue.getSize(),
+                    queue.queueSize,
+                    queue.retainedBytes,
+                    queue.getLazyMap().getQueueSize(),
+                    queue.getThroughput(),
+                    queue.rateController.getRate(),
+                    queue.rateController.getBottleneck(),
+                    queue.rateController.getRtt(),
+                    queue.rateController.getMinRtt(),
+                    queue.getWeight(now),
+                    quantiles(queue.delays, now),
+                    queue.delays.getCumulativeCounts(),
+                    queue.delays.getTotalNanos(),
+                    queue.isPlayable(),
+                    queue.isAdmitted()
+            ));
+        }
+        this.players = List.copyOf(players);
+    }
+
+    private static long[] quantiles(LatencyHistogram histogram, long now) {
+        long[] values = new long[QUANTILES.length];
+        for (int i = 0; i < QUANTILES.length; i++) {
+            values[i] = histogram.getQuantile(QUANTILES[i], now);
+        }
+        return values;
+    }
+}
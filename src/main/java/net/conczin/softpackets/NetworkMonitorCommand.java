@@ -3,9 +3,11 @@ package net.conczin.softpackets;
 import com.hypixel.hytale.common.util.FormatUtil;
 import com.hypixel.hytale.protocol.GameMode;
 import com.hypixel.hytale.server.core.Message;
-import com.hypixel.hytale.server.core.auth.PlayerAuthentication;
 import com.hypixel.hytale.server.core.command.system.AbstractCommand;
 import com.hypixel.hytale.server.core.command.system.CommandContext;
+import it.unimi.dsi.fastutil.ints.Int2LongMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntComparator;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -13,6 +15,8 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 public class NetworkMonitorCommand extends AbstractCommand {
+    private static final int TOP_PACKET_TYPES = 8;
+
     public NetworkMonitorCommand() {
         super("softpackets", "Displays soft packet stats.");
         this.addAliases("sp");
@@ -30,21 +34,73 @@ public class NetworkMonitorCommand extends AbstractCommand {
         context.sendMessage(Message.raw("Soft Packet Stats:"));
         context.sendMessage(Message.raw(" Base bandwidth: " + FormatUtil.bytesToString(baseBytes)));
         context.sendMessage(Message.raw(" Average delay: " + FormatUtil.simpleTimeUnitFormat((long) (totalDelay / Math.max(packets, 1) * 1000), TimeUnit.MILLISECONDS, 2)));
+        context.sendMessage(Message.raw(" Delay (last " + LatencyHistogram.getWindowSeconds() + "s): " + formatDelays(queue.metrics.delays)));
         context.sendMessage(Message.raw(" Packets throttled: " + packets));
-        context.sendMessage(Message.raw(" Throttles: Ping=" + queue.metrics.throttlePing + " Buffer=" + queue.metrics.throttleBuffer + " Max=" + queue.metrics.throttleMax));
-        context.sendMessage(Message.raw(" Prioritized " + queue.metrics.prioritized + " packets, dropped " + queue.metrics.drops));
-        context.sendMessage(Message.raw(" Spent " + FormatUtil.simpleTimeUnitFormat(queue.metrics.timeSorted, TimeUnit.NANOSECONDS, 4) + " sorting packets"));
-
-        queue.queues.forEach((handler, q) -> {
-            if (!q.isEmpty()) {
-                PlayerAuthentication auth = handler.getAuth();
-                if (auth == null) return;
-                String identifier = auth.getUsername();
-                String s = FormatUtil.bytesToString(q.queueSize);
-                context.sendMessage(Message.raw(String.format("    %s: %s packets, %s, %s map chunks", identifier, q.getSize(), s, q.getLazyMap().getQueueSize())));
+        context.sendMessage(Message.raw(" Throttles: Rate=" + queue.metrics.throttlePing.sum() + " Buffer=" + queue.metrics.throttleBuffer.sum() + " Max=" + queue.metrics.throttleMax.sum() + " Urgent=" + queue.metrics.throttleUrgent.sum()));
+        context.sendMessage(Message.raw(" Prioritized " + queue.metrics.prioritized.sum() + " packets, dropped " + queue.metrics.drops.sum()));
+        for (Int2LongMap.Entry entry : queue.metrics.getDropsByType().int2LongEntrySet()) {
+            context.sendMessage(Message.raw("    " + Metrics.getPacketName(entry.getIntKey()) + ": " + entry.getLongValue() + " dropped"));
+        }
+        context.sendMessage(Message.raw(" Coalesced " + queue.metrics.coalesced.sum() + " superseded packets, saving " + FormatUtil.bytesToString(queue.metrics.coalescedBytes.sum())));
+        context.sendMessage(Message.raw(" Skipped " + queue.metrics.unchanged.sum() + " unchanged chunk packets the clients still held, saving " + FormatUtil.bytesToString(queue.metrics.unchangedBytes.sum())));
+        context.sendMessage(Message.raw(" Shared " + queue.sharedCache.getEntries() + " chunk packets (" + FormatUtil.bytesToString(queue.sharedCache.getRetainedBytes()) + "), " + queue.sharedCache.hits.sum() + " hits, " + queue.sharedCache.misses.sum() + " misses"));
+        context.sendMessage(Message.raw(" Queues hold " + FormatUtil.bytesToString(queue.metrics.getRetainedBytes()) + ", evicted " + queue.metrics.evictions.sum() + " chunk packets (" + FormatUtil.bytesToString(queue.metrics.evictedBytes.sum()) + ")"));
+        LinkProfileStore profiles = queue.getProfileStore();
+        if (profiles != null) {
+            context.sendMessage(Message.raw(" Remembering the links of " + profiles.size() + " players"));
+        }
+        context.sendMessage(Message.raw(" Time to playable: median " + FormatUtil.simpleTimeUnitFormat(queue.metrics.getTimeToPlayable(0.5), TimeUnit.NANOSECONDS, 1) + ", p95 " + FormatUtil.simpleTimeUnitFormat(queue.metrics.getTimeToPlayable(0.95), TimeUnit.NANOSECONDS, 1) + " over " + queue.metrics.getPlayablePlayers() + " players"));
+        IntArrayList ids = new IntArrayList();
+        for (int id = 0; id < SizeEstimator.MAX_PACKET_ID; id++) {
+            if (queue.metrics.getPackets(id) > 0) {
+                ids.add(id);
+            }
+        }
+        ids.sort((IntComparator) (a, b) -> Long.compare(queue.metrics.getEstimatedBytes(b), queue.metrics.getEstimatedBytes(a)));
+        context.sendMessage(Message.raw(" Top packet types:"));
+        for (int i = 0; i < Math.min(TOP_PACKET_TYPES, ids.size()); i++) {
+            int id = ids.getInt(i);
+            context.sendMessage(Message.raw(String.format("    %s: %s packets, %s estimated, %s measured, %s dropped",
+                    Metrics.getPacketName(id),
+                    queue.metrics.getPackets(id),
+                    FormatUtil.bytesToString(queue.metrics.getEstimatedBytes(id)),
+                    FormatUtil.bytesToString(queue.metrics.getRealBytes(id)),
+                    queue.metrics.getDrops(id))));
+        }
+        StringBuilder ratios = new StringBuilder(" Compression:");
+        for (int id = 0; id < SizeEstimator.MAX_PACKET_ID; id++) {
+            if (queue.sizeEstimator.getSamples(id) > 0) {
+                ratios.append(String.format(" %s=%.3f", Metrics.getPacketName(id), queue.sizeEstimator.getRatio(id)));
             }
-        });
+        }
+        context.sendMessage(Message.raw(ratios.toString()));
+        context.sendMessage(Message.raw(" Spent " + FormatUtil.simpleTimeUnitFormat(queue.metrics.timeSorted.sum(), TimeUnit.NANOSECONDS, 4) + " sorting packets"));
+
+        // Players as last published by the sender, their queues belong to the sender thread
+        for (MetricsSnapshot.Player p : queue.getSnapshot().players) {
+            if (p.packets() == 0) continue;
+            String s = FormatUtil.bytesToString(p.queuedBytes()) + " (" + FormatUtil.bytesToString(p.retainedBytes()) + " held)";
+            String throughput = FormatUtil.bytesToString((long) p.throughput());
+            String state = p.playable() ? "" : p.admitted() ? ", loading" : ", waiting";
+            context.sendMessage(Message.raw(String.format("    %s: %s packets, %s, %s map chunks, %s/s at weight %.1f%s", p.name(), p.packets(), s, p.mapChunks(), throughput, p.weight(), state)));
+            context.sendMessage(Message.raw("      delay p50 " + format(p.delays()[0]) + ", p95 " + format(p.delays()[1])));
+            context.sendMessage(Message.raw(String.format("      rate %s/s, bottleneck %s/s, RTT %s (base %s)",
+                    FormatUtil.bytesToString((long) p.rate()),
+                    FormatUtil.bytesToString((long) p.bottleneck()),
+                    FormatUtil.simpleTimeUnitFormat((long) p.rtt(), TimeUnit.MICROSECONDS, 1),
+                    FormatUtil.simpleTimeUnitFormat((long) p.minRtt(), TimeUnit.MICROSECONDS, 1))));
+        }
 
         return CompletableFuture.completedFuture(null);
     }
+
+    private static String formatDelays(LatencyHistogram histogram) {
+        long now = Clock.nanoTime();
+        return "p50 " + format(histogram.getQuantile(0.5, now)) + ", p95 " + format(histogram.getQuantile(0.95, now))
+                + ", p99 " + format(histogram.getQuantile(0.99, now)) + ", max " + format(histogram.getMax(now)) + " over " + histogram.getCount(now) + " packets";
+    }
+
+    private static String format(long nanos) {
+        return FormatUtil.simpleTimeUnitFormat(nanos / 1_000_000, TimeUnit.MILLISECONDS, 1);
+    }
 }
\ No newline at end of file
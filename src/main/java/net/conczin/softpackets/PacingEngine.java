@@ -0,0 +1,45 @@
+package net.conczin.softpackets;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains the queues from a single timer thread in small, evenly spaced slices, independent of how many worlds tick.
+ */
+public class PacingEngine {
+    private final QueuedPacketSenderSystem system;
+    private final long interval;
+
+    private ScheduledExecutorService executor;
+
+    public PacingEngine(QueuedPacketSenderSystem system, long intervalMillis) {
+        this.system = system;
+        this.interval = intervalMillis;
+    }
+
+    public synchronized void start() {
+        if (executor != null) return;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SoftPackets-Pacer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::run, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor == null) return;
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    private void run() {
+        // An exception would cancel all further runs
+        try {
+            system.drain();
+        } catch (Exception exception) {
+            Main.LOGGER.atWarning().log("Failed to send queued packets - " + exception);
+        }
+    }
+}
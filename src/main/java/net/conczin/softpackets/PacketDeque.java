@@ -0,0 +1,83 @@
+package net.conczin.softpackets;
+
+import net.conczin.softpackets.QueuedPacketSenderSystem.CachedPacket;
+
+/**
+ * Array-backed FIFO of cached packets, growing by doubling and never allocating on poll.
+ */
+public class PacketDeque {
+    private CachedPacket[] elements;
+    private int head = 0;
+    private int size = 0;
+
+    public PacketDeque() {
+        this(16);
+    }
+
+    public PacketDeque(int initialCapacity) {
+        this.elements = new CachedPacket[Integer.highestOneBit(Math.max(2, initialCapacity - 1)) << 1];
+    }
+
+    public void add(CachedPacket packet) {
+        if (size == elements.length) {
+            grow();
+        }
+        elements[(head + size) & (elements.length - 1)] = packet;
+        size++;
+    }
+
+    public CachedPacket poll() {
+        if (size == 0) {
+            return null;
+        }
+        CachedPacket packet = elements[head];
+        elements[head] = null;
+        head = (head + 1) & (elements.length - 1);
+        size--;
+        return packet;
+    }
+
+    public CachedPacket pollLast() {
+        if (size == 0) {
+            return null;
+        }
+        size--;
+        int index = (head + size) & (elements.length - 1);
+        CachedPacket packet = elements[index];
+        elements[index] = null;
+        return packet;
+    }
+
+    public CachedPacket peek() {
+        return size == 0 ? null : elements[head];
+    }
+
+    public CachedPacket get(int index) {
+        return elements[(head + index) & (elements.length - 1)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            elements[(head + i) & (elements.length - 1)] = null;
+        }
+        head = 0;
+        size = 0;
+    }
+
+    private void grow() {
+        CachedPacket[] grown = new CachedPacket[elements.length << 1];
+        for (int i = 0; i < size; i++) {
+            grown[i] = elements[(head + i) & (elements.length - 1)];
+        }
+        elements = grown;
+        head = 0;
+    }
+}
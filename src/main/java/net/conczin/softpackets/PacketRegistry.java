@@ -0,0 +1,189 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.protocol.Packet;
+import com.hypixel.hytale.protocol.packets.assets.*;
+import com.hypixel.hytale.protocol.packets.setup.*;
+import com.hypixel.hytale.protocol.packets.world.*;
+
+import java.util.List;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Packet types throttled by the scheduler, looked up by packet id. Unregistered packets are sent directly.
+ * Other plugins register their own large packets through {@code Main.getInstance().getPacketRegistry()}.
+ * <p>
+ * Packets with a position are queued by distance to the player like chunks, and dropped once their column unloads.
+ * Packets without one are queued by priority class, {@link #BARRIER} packets send only after everything queued before them.
+ */
+public class PacketRegistry {
+    public static final int CRITICAL = 0;
+    public static final int GAMEPLAY = 1;
+    public static final int COSMETIC = 2;
+    public static final int STREAM = 3;
+    public static final int BARRIER = 4;
+
+    public static final long NO_KEY = Long.MIN_VALUE;
+
+    /**
+     * How a packet type is throttled.
+     *
+     * @param priority      priority class, from {@link #CRITICAL} to {@link #BARRIER}, ignored for packets with a position
+     * @param sizeEstimator estimated bytes on the wire, or null to learn the compression ratio from the measured sizes
+     * @param position      chunk key from {@link ChunkHeaderParser#pack}, in chunk coordinates with y -1 for a whole column,
+     *                      or null for packets without a position. Packets it returns {@link ChunkHeaderParser#NO_CHUNK} for are sent directly
+     * @param coalescingKey a queued packet of the same type and key is replaced by a newer one, or null to send every packet.
+     *                      Packets with a position only replace one at the same chunk
+     */
+    public record PacketClass(int priority, ToIntFunction<Packet> sizeEstimator, ToLongFunction<Packet> position, ToLongFunction<Packet> coalescingKey) {
+        public PacketClass {
+            if (priority < CRITICAL || priority > BARRIER) {
+                throw new IllegalArgumentException("Unknown priority class " + priority);
+            }
+        }
+
+        public boolean isSpatial() {
+            return position != null;
+        }
+    }
+
+    static final PacketClass CHUNK = new PacketClass(GAMEPLAY, null, ChunkHeaderParser::fromPacket, ChunkHeaderParser::fromPacket);
+
+    private final SizeEstimator sizeEstimator;
+
+    // Replaced on every registration, so lookups need no lock
+    private volatile PacketClass[] classes = new PacketClass[SizeEstimator.MAX_PACKET_ID];
+
+    public PacketRegistry(SoftPacketConfig config, SizeEstimator sizeEstimator) {
+        this.sizeEstimator = sizeEstimator;
+
+        register(CHUNK, List.of(
+                SetChunk.PACKET_ID,
+                SetChunkHeightmap.PACKET_ID,
+                SetChunkTintmap.PACKET_ID,
+                SetChunkEnvironments.PACKET_ID,
+                SetFluids.PACKET_ID
+        ));
+
+        if (!config.isThrottleAssetDownloading()) {
+            return;
+        }
+        register(new PacketClass(CRITICAL, null, null, null), List.of(
+                UpdateBlockTypes.PACKET_ID,
+                UpdateBlockHitboxes.PACKET_ID,
+                UpdateBlockSets.PACKET_ID,
+                UpdateBlockGroups.PACKET_ID,
+                UpdateFluids.PACKET_ID,
+                UpdateHitboxCollisionConfig.PACKET_ID,
+                UpdateRepulsionConfig.PACKET_ID,
+                UpdateEnvironments.PACKET_ID,
+                UpdateWeathers.PACKET_ID,
+                UpdateItems.PACKET_ID,
+                UpdateItemCategories.PACKET_ID,
+                UpdateTranslations.PACKET_ID
+        ));
+        register(new PacketClass(GAMEPLAY, null, null, null), List.of(
+                UpdateFieldcraftCategories.PACKET_ID,
+                UpdateItemReticles.PACKET_ID,
+                UpdateResourceTypes.PACKET_ID,
+                UpdateEntityStatTypes.PACKET_ID,
+                UpdateInteractions.PACKET_ID,
+                UpdateRootInteractions.PACKET_ID,
+                UpdateProjectileConfigs.PACKET_ID,
+                UpdateTagPatterns.PACKET_ID,
+                UpdateEntityEffects.PACKET_ID,
+                UpdateEntityUIComponents.PACKET_ID,
+                UpdateUnarmedInteractions.PACKET_ID,
+                UpdateItemPlayerAnimations.PACKET_ID,
+                UpdateItemQualities.PACKET_ID,
+                UpdateRecipes.PACKET_ID,
+                UpdateViewBobbing.PACKET_ID
+        ));
+        register(new PacketClass(COSMETIC, null, null, null), List.of(
+                UpdateParticleSystems.PACKET_ID,
+                UpdateParticleSpawners.PACKET_ID,
+                UpdateBlockParticleSets.PACKET_ID,
+                UpdateBlockBreakingDecals.PACKET_ID,
+                UpdateItemSoundSets.PACKET_ID,
+                UpdateBlockSoundSets.PACKET_ID,
+                UpdateSoundEvents.PACKET_ID,
+                UpdateSoundSets.PACKET_ID,
+                UpdateAudioCategories.PACKET_ID,
+                UpdateReverbEffects.PACKET_ID,
+                UpdateEqualizerEffects.PACKET_ID,
+                UpdateAmbienceFX.PACKET_ID,
+                UpdateFluidFX.PACKET_ID,
+                UpdateModelvfxs.PACKET_ID,
+                UpdateTrails.PACKET_ID,
+                UpdateCameraShake.PACKET_ID
+        ));
+        register(new PacketClass(STREAM, null, null, null), List.of(
+                AssetInitialize.PACKET_ID,
+                AssetPart.PACKET_ID,
+                AssetFinalize.PACKET_ID
+        ));
+        register(new PacketClass(BARRIER, null, null, null), List.of(
+                WorldLoadProgress.PACKET_ID,
+                WorldLoadFinished.PACKET_ID
+        ));
+    }
+
+    private void register(PacketClass packetClass, List<Integer> packetIds) {
+        for (int id : packetIds) {
+            if (id >= 0 && id < SizeEstimator.MAX_PACKET_ID) {
+                register(id, packetClass);
+            }
+        }
+    }
+
+    /**
+     * Throttles a packet type, replacing its previous class. Takes effect for packets sent afterward.
+     */
+    public synchronized void register(int packetId, PacketClass packetClass) {
+        if (packetId < 0 || packetId >= SizeEstimator.MAX_PACKET_ID) {
+            throw new IllegalArgumentException("Packet id " + packetId + " out of range");
+        }
+        PacketClass[] copy = classes.clone();
+        copy[packetId] = packetClass;
+        classes = copy;
+    }
+
+    /**
+     * Sends a packet type directly again.
+     */
+    public synchronized void unregister(int packetId) {
+        if (packetId >= 0 && packetId < SizeEstimator.MAX_PACKET_ID) {
+            PacketClass[] copy = classes.clone();
+            copy[packetId] = null;
+            classes = copy;
+        }
+    }
+
+    /**
+     * The class of a packet type, or null if it is not throttled.
+     */
+    public PacketClass get(int packetId) {
+        return packetId < 0 || packetId >= SizeEstimator.MAX_PACKET_ID ? null : classes[packetId];
+    }
+
+    public int priorityOf(int packetId) {
+        PacketClass packetClass = get(packetId);
+        return packetClass == null ? GAMEPLAY : packetClass.priority();
+    }
+
+    public long coalescingKeyOf(Packet packet) {
+        PacketClass packetClass = get(packet.getId());
+        return packetClass == null || packetClass.coalescingKey() == null ? NO_KEY : packetClass.coalescingKey().applyAsLong(packet);
+    }
+
+    /**
+     * Estimated bytes on the wire, from the registered estimator if any.
+     */
+    public int estimate(Packet packet) {
+        PacketClass packetClass = get(packet.getId());
+        if (packetClass != null && packetClass.sizeEstimator() != null) {
+            return packetClass.sizeEstimator().applyAsInt(packet);
+        }
+        return sizeEstimator.estimate(packet);
+    }
+}
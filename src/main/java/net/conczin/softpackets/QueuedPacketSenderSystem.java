@@ -3,241 +3,515 @@ package net.conczin.softpackets;
 import com.hypixel.hytale.component.Store;
 import com.hypixel.hytale.component.system.tick.RunWhenPausedSystem;
 import com.hypixel.hytale.component.system.tick.TickingSystem;
+import com.hypixel.hytale.math.util.ChunkUtil;
 import com.hypixel.hytale.math.vector.Vector3d;
-import com.hypixel.hytale.metrics.metric.HistoricMetric;
 import com.hypixel.hytale.protocol.Packet;
 import com.hypixel.hytale.protocol.ToClientPacket;
-import com.hypixel.hytale.protocol.Vector3i;
-import com.hypixel.hytale.protocol.packets.assets.*;
-import com.hypixel.hytale.protocol.packets.connection.PongType;
-import com.hypixel.hytale.protocol.packets.setup.*;
-import com.hypixel.hytale.protocol.packets.world.*;
+import com.hypixel.hytale.protocol.packets.world.UnloadChunk;
 import com.hypixel.hytale.protocol.packets.worldmap.UpdateWorldMap;
+import com.hypixel.hytale.server.core.auth.PlayerAuthentication;
 import com.hypixel.hytale.server.core.io.PacketHandler;
 import com.hypixel.hytale.server.core.io.adapter.PacketFilter;
 import com.hypixel.hytale.server.core.io.handlers.game.GamePacketHandler;
+import com.hypixel.hytale.server.core.universe.Universe;
+import com.hypixel.hytale.server.core.universe.world.World;
 import com.hypixel.hytale.server.core.universe.world.storage.ChunkStore;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelPipeline;
+import io.netty.util.AttributeKey;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 
 import javax.annotation.Nonnull;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class QueuedPacketSenderSystem extends TickingSystem<ChunkStore> implements RunWhenPausedSystem<ChunkStore>, PacketFilter {
     private static final double MIN_VERIFY_DISTANCE = 32;
+    private static final long SNAPSHOT_INTERVAL = 1_000_000_000L;
 
-    public final Map<PacketHandler, PlayerQueue> queues = Collections.synchronizedMap(new WeakHashMap<>());
+    // Chunks interleaved with asset downloads lie within this ring
+    private static final int SPAWN_RING = 4;
+
+    // Share of their weight loading players keep while waiting for admission
+    private static final double WAITING_WEIGHT = 0.1;
+
+    // Admitted players give up their slot after this long, or once nothing was queued for them for a while
+    private static final long ADMISSION_TIMEOUT = 60_000_000_000L;
+    private static final long ADMISSION_IDLE = 5_000_000_000L;
+
+    // Shortest interval a velocity sample is taken over
+    private static final long VELOCITY_INTERVAL = 50_000_000L;
+
+    // Rounds per drain, the rest of the deficit carries over to the next one
+    private static final int MAX_ROUNDS = 256;
+
+    // Kept on the channel, since a player's handler and thus queue changes between setup and game
+    private static final AttributeKey<Long> JOINED = AttributeKey.valueOf("softPacketsJoined");
+    private static final AttributeKey<Long> ADMITTED = AttributeKey.valueOf("softPacketsAdmitted");
+    private static final AttributeKey<PlayerQueue> QUEUE = AttributeKey.valueOf("softPacketsQueue");
+
+    public final ConcurrentMap<PacketHandler, PlayerQueue> queues = new ConcurrentHashMap<>();
 
     public final Metrics metrics;
+    public final SizeEstimator sizeEstimator = new SizeEstimator();
+    public final PacketRegistry packetRegistry;
+    public final SharedPacketCache sharedCache;
     private final SoftPacketConfig config;
-    private final double minDistance;
-
-    private ToClientPacket currentPacket = null;
-
-    private static final Set<Integer> largePacketIds = Set.of(
-            // Chunk
-            SetChunk.PACKET_ID,
-            SetChunkHeightmap.PACKET_ID,
-            SetChunkTintmap.PACKET_ID,
-            SetChunkEnvironments.PACKET_ID,
-            SetFluids.PACKET_ID
-    );
-
-    private static final Set<Integer> assetPacketIds = Set.of(
-            // Configs
-            UpdateParticleSystems.PACKET_ID,
-            UpdateItemCategories.PACKET_ID,
-            UpdateFieldcraftCategories.PACKET_ID,
-            UpdateItemSoundSets.PACKET_ID,
-            UpdateItemReticles.PACKET_ID,
-            UpdateEnvironments.PACKET_ID,
-            UpdateBlockBreakingDecals.PACKET_ID,
-            UpdateAudioCategories.PACKET_ID,
-            UpdateResourceTypes.PACKET_ID,
-            UpdateEntityStatTypes.PACKET_ID,
-            UpdateHitboxCollisionConfig.PACKET_ID,
-            UpdateReverbEffects.PACKET_ID,
-            UpdateInteractions.PACKET_ID,
-            UpdateRootInteractions.PACKET_ID,
-            UpdateEqualizerEffects.PACKET_ID,
-            UpdateBlockGroups.PACKET_ID,
-            UpdateBlockParticleSets.PACKET_ID,
-            UpdateBlockHitboxes.PACKET_ID,
-            UpdateAmbienceFX.PACKET_ID,
-            UpdateBlockTypes.PACKET_ID,
-            UpdateProjectileConfigs.PACKET_ID,
-            UpdateTagPatterns.PACKET_ID,
-            UpdateBlockSoundSets.PACKET_ID,
-            UpdateFluidFX.PACKET_ID,
-            UpdateEntityEffects.PACKET_ID,
-            UpdateEntityUIComponents.PACKET_ID,
-            UpdateUnarmedInteractions.PACKET_ID,
-            UpdateItemPlayerAnimations.PACKET_ID,
-            UpdateCameraShake.PACKET_ID,
-            UpdateSoundEvents.PACKET_ID,
-            UpdateItems.PACKET_ID,
-            UpdateWeathers.PACKET_ID,
-            UpdateItemQualities.PACKET_ID,
-            UpdateRecipes.PACKET_ID,
-            UpdateBlockSets.PACKET_ID,
-            UpdateSoundSets.PACKET_ID,
-            UpdateParticleSpawners.PACKET_ID,
-            UpdateViewBobbing.PACKET_ID,
-            UpdateFluids.PACKET_ID,
-            UpdateModelvfxs.PACKET_ID,
-            UpdateRepulsionConfig.PACKET_ID,
-            UpdateTrails.PACKET_ID,
-            UpdateTranslations.PACKET_ID,
-
-            // Assets
-            AssetInitialize.PACKET_ID,
-            AssetPart.PACKET_ID,
-            AssetFinalize.PACKET_ID,
-
-            // Progress indicators
-            WorldLoadProgress.PACKET_ID,
-            WorldLoadFinished.PACKET_ID
-    );
-
-    private static final Map<Integer, Double> compressionRatios = Map.of(
-            SetChunk.PACKET_ID, 0.065,
-            SetChunkHeightmap.PACKET_ID, 0.5,
-            SetChunkTintmap.PACKET_ID, 0.75,
-            SetChunkEnvironments.PACKET_ID, 0.15,
-            SetFluids.PACKET_ID, 0.05,
-            UpdateWorldMap.PACKET_ID, 0.3,
-            AssetPart.PACKET_ID, 0.85
-
-    );
+    private final double nearDistance;
+    private final int nearRing;
+
+    // Set while this plugin writes packets on the calling thread, which must not be intercepted again
+    private final ThreadLocal<Boolean> sending = ThreadLocal.withInitial(() -> false);
+
+    // Packets of the player currently drained, written with a single call
+    private final List<ToClientPacket> batch = new ArrayList<>();
+    private int roundRobinOffset = 0;
+
+    private final ReentrantLock drainLock = new ReentrantLock();
+
+    // Published by the sender at most once per second for monitoring
+    private volatile MetricsSnapshot snapshot;
+    private long lastSnapshotNano;
+
+    // Connections of loading players in join order, waiting for an admission slot
+    private final Queue<Channel> waiting = new ConcurrentLinkedQueue<>();
+
+    // Records outbound traffic for replay, if enabled
+    private volatile TrafficRecorder recorder;
+
+    // Links of earlier sessions by player, if enabled
+    private volatile LinkProfileStore profiles;
 
     public QueuedPacketSenderSystem(SoftPacketConfig config) {
         this.metrics = new Metrics(config);
-        this.config = Main.getInstance().getConfig();
-        this.minDistance = Math.pow(config.getMinDistance() + MIN_VERIFY_DISTANCE, 2.0);
+        this.config = config;
+        this.sharedCache = new SharedPacketCache(config, sizeEstimator, metrics);
+        this.packetRegistry = new PacketRegistry(config, sizeEstimator);
+        this.nearDistance = config.getMinDistance() + MIN_VERIFY_DISTANCE;
+        this.nearRing = Math.max(0, (int) Math.ceil((config.getMinDistance() + MIN_VERIFY_DISTANCE) / 32.0) - 1);
+        this.lastSnapshotNano = Clock.nanoTime();
+        this.snapshot = new MetricsSnapshot(this, lastSnapshotNano);
     }
 
     @Override
     public void tick(float dt, int idx, @Nonnull Store<ChunkStore> store) {
-        metrics.tick();
+        if (!config.isPacingEnabled()) {
+            drain();
+        }
+    }
 
-        // Random order to prevent starvation
-        List<Map.Entry<PacketHandler, PlayerQueue>> entries;
-        synchronized (queues) {
-            entries = new ArrayList<>(queues.entrySet());
+    /**
+     * Sends queued packets within the current budget. Safe to call from every world's tick and from the pacer,
+     * the budget is time-based and concurrent calls are skipped.
+     */
+    public void drain() {
+        if (!drainLock.tryLock()) {
+            return;
         }
-        Collections.shuffle(entries);
+        try {
+            metrics.tick();
+
+            long now = Clock.nanoTime();
+            if (now - lastSnapshotNano >= SNAPSHOT_INTERVAL) {
+                snapshot = new MetricsSnapshot(this, now);
+                lastSnapshotNano = now;
+                TrafficRecorder recorder = this.recorder;
+                if (recorder != null) {
+                    recorder.flush();
+                }
+            }
+
+            List<Map.Entry<PacketHandler, PlayerQueue>> entries = new ArrayList<>(queues.entrySet());
 
-        for (Map.Entry<PacketHandler, PlayerQueue> entry : entries) {
-            PlayerQueue queue = entry.getValue();
+            // Rotate the starting player to prevent starvation
+            if (!entries.isEmpty()) {
+                Collections.rotate(entries, -Math.floorMod(roundRobinOffset++, entries.size()));
+            }
+
+            List<Map.Entry<PacketHandler, PlayerQueue>> backlogged = new ArrayList<>(entries.size());
+            for (Map.Entry<PacketHandler, PlayerQueue> entry : entries) {
+                PlayerQueue queue = entry.getValue();
+                if (!entry.getKey().getChannel().isOpen()) {
+                    if (queues.remove(entry.getKey(), queue)) {
+                        queue.close();
+                    }
+                    continue;
+                }
+
+                queue.drainInbox();
+                queue.updateThroughput(now);
+                queue.updatePlayable(entry.getKey(), now);
+
+                // Verify the status of the queue, the player's movement is tracked even while nothing is queued
+                PacketHandler handler = entry.getKey();
+                queue.verify(handler);
+
+                if (queue.isEmpty()) {
+                    queue.deficit = 0;
+                    if (queue.emptySinceNano == 0) {
+                        queue.emptySinceNano = now;
+                    }
+                    continue;
+                }
+                queue.emptySinceNano = 0;
+
+                // Observe player ping and writability
+                queue.rateController.update(handler, now);
 
-            if (queue.isEmpty()) continue;
+                backlogged.add(entry);
+            }
+
+            // Evict from the largest queue while all queues together exceed their memory budget
+            long queueMemory = config.getQueueMemory();
+            if (queueMemory > 0 && metrics.getRetainedBytes() > queueMemory) {
+                List<PlayerQueue> candidates = new ArrayList<>(queues.values());
+                while (!candidates.isEmpty() && metrics.getRetainedBytes() > queueMemory) {
+                    PlayerQueue largest = candidates.getFirst();
+                    for (PlayerQueue queue : candidates) {
+                        if (queue.retainedBytes > largest.retainedBytes) {
+                            largest = queue;
+                        }
+                    }
+                    if (!largest.evictFarthest()) {
+                        // Nothing left to evict there, the next largest may still hold chunks
+                        candidates.remove(largest);
+                    }
+                }
+            }
+
+            admit(now);
 
-            // Observe player ping
-            PacketHandler handler = entry.getKey();
-            HistoricMetric ping = handler.getPingInfo(PongType.Raw).getPingMetricSet();
-            double current = ping.getAverage(0);
-            double base = ping.getAverage(ping.getPeriodsNanos().length - 1);
-            double ratio = (current + 1) / (base + 1);
-            boolean pingDegraded = ratio > 2.0;
+            // Nearby chunks first, paced by their own bucket
+            drainUrgent(backlogged);
 
-            // Verify the status of the queue
-            queue.verify(handler);
+            // Deficit round robin, every round each backlogged player earns a quantum scaled by its weight
+            for (int round = 0; round < MAX_ROUNDS && !backlogged.isEmpty(); round++) {
+                Iterator<Map.Entry<PacketHandler, PlayerQueue>> it = backlogged.iterator();
+                while (it.hasNext()) {
+                    Map.Entry<PacketHandler, PlayerQueue> entry = it.next();
+                    PlayerQueue queue = entry.getValue();
+                    queue.deficit += Math.max(1, (long) (config.getFairShareQuantum() * queue.getWeight(now)));
 
-            while (!queue.isEmpty()) {
+                    DrainResult result = drain(entry.getKey(), queue);
+                    if (result == DrainResult.BUDGET_EXHAUSTED) {
+                        return;
+                    }
+                    if (result == DrainResult.PLAYER_BLOCKED || queue.isEmpty()) {
+                        // A blocked player does not bank quanta it could not use, debts are kept
+                        queue.deficit = Math.min(queue.deficit, 0);
+                        it.remove();
+                    }
+                }
+            }
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    /**
+     * The latest state published by the sender, at most a second old while the sender runs.
+     */
+    public MetricsSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Starts or, with null, stops recording outbound traffic. Players connected before keep their traffic unrecorded.
+     */
+    public void setRecorder(TrafficRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Seeds the rate of connecting players from their earlier sessions and remembers it on disconnect, disabled with null.
+     */
+    public void setProfileStore(LinkProfileStore profiles) {
+        this.profiles = profiles;
+    }
+
+    public LinkProfileStore getProfileStore() {
+        return profiles;
+    }
+
+    private enum DrainResult {
+        QUANTUM_SPENT,
+        PLAYER_BLOCKED,
+        BUDGET_EXHAUSTED
+    }
+
+    /**
+     * Admits waiting players in join order until the admission slots are taken by players still loading.
+     */
+    private void admit(long now) {
+        long slots = config.getAdmissionSlots();
+        if (slots <= 0) return;
+        for (PlayerQueue queue : queues.values()) {
+            if (queue.holdsAdmissionSlot(now)) {
+                slots--;
+            }
+        }
+        while (slots > 0) {
+            Channel channel = waiting.poll();
+            if (channel == null) return;
+            PlayerQueue queue = channel.attr(QUEUE).get();
+            if (queue == null || queue.isAdmitted() || queue.isPlayable() || !channel.isOpen()) continue;
+            queue.admit(now);
+            slots--;
+        }
+    }
+
+    /**
+     * Sends the urgent tier of all players, a quantum per player and round, until the urgent bucket is spent.
+     * Urgent packets skip the per-player rate but still wait for a writable channel.
+     */
+    private void drainUrgent(List<Map.Entry<PacketHandler, PlayerQueue>> backlogged) {
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (Map.Entry<PacketHandler, PlayerQueue> entry : backlogged) {
+                PacketHandler handler = entry.getKey();
+                PlayerQueue queue = entry.getValue();
+                if (!queue.hasUrgent()) continue;
+
+                if (metrics.getUrgentBucket() <= 0) {
+                    metrics.throttleUrgent.increment();
+                    return;
+                }
+                if (!handler.getChannel().isWritable()) {
+                    queue.rateController.onBufferFull();
+                    metrics.throttleBuffer.increment();
+                    continue;
+                }
+
+                int batchBytes = 0;
+                int quantum = 0;
+                try {
+                    CachedPacket packet;
+                    while (quantum < config.getFairShareQuantum() && metrics.getUrgentBucket() > 0 && (packet = queue.pollUrgent()) != null) {
+                        batchBytes = collect(handler, queue, packet, batchBytes);
+                        quantum += packet.size;
+                        metrics.addUrgent(packet.size);
+                    }
+                } finally {
+                    send(handler, batch);
+                }
+                progress |= quantum > 0;
+            }
+        }
+    }
+
+    private DrainResult drain(PacketHandler handler, PlayerQueue queue) {
+        int batchBytes = 0;
+        try {
+            while (queue.deficit > 0 && !queue.isEmpty()) {
                 if (metrics.getMinimumBucket() <= 0) {
                     // Maximum reached
                     if (metrics.getMaximumBucket() - metrics.getBaseBytes() <= 0) {
-                        metrics.throttleMax++;
-                        break;
+                        metrics.throttleMax.increment();
+                        return DrainResult.BUDGET_EXHAUSTED;
                     }
 
-                    // Ping degraded
-                    if (pingDegraded && config.isThrottleWhenPingDegrades()) {
-                        metrics.throttlePing++;
-                        break;
+                    // Player rate reached
+                    if (config.isThrottleWhenPingDegrades() && !queue.rateController.hasTokens()) {
+                        metrics.throttlePing.increment();
+                        return DrainResult.PLAYER_BLOCKED;
                     }
 
                     // Channel buffer full
                     Channel channel = handler.getChannel();
                     if (!channel.isWritable()) {
-                        metrics.throttleBuffer++;
-                        break;
+                        queue.rateController.onBufferFull();
+                        metrics.throttleBuffer.increment();
+                        return DrainResult.PLAYER_BLOCKED;
                     }
                 }
 
-                // Send the packet
                 CachedPacket packet = queue.poll();
-                if (packet == null) break;
-                currentPacket = packet.packet();
-                handler.write(currentPacket);
-                currentPacket = null;
-
-                // Record usage if the handler is active
-                // (dead channels usually don't consume real bandwidth)
-                // (but the channel may also still be used despite being inactive, e.g., during login)
-                if (handler.stillActive()) {
-                    metrics.add(packet.size, packet.time);
-                }
+                if (packet == null) return DrainResult.PLAYER_BLOCKED;
+                batchBytes = collect(handler, queue, packet, batchBytes);
             }
+            return DrainResult.QUANTUM_SPENT;
+        } finally {
+            send(handler, batch);
         }
     }
 
+    /**
+     * Collects the packet into the batch, writing the batch once it is full.
+     *
+     * @return the bytes now in the batch
+     */
+    private int collect(PacketHandler handler, PlayerQueue queue, CachedPacket packet, int batchBytes) {
+        if (queue.wireSizeMonitor != null) {
+            queue.wireSizeMonitor.expect(packet);
+        }
+        batch.add(packet.packet);
+        batchBytes += packet.size;
+        if (batchBytes >= config.getBatchSize()) {
+            send(handler, batch);
+            batchBytes = 0;
+        }
+
+        queue.deficit -= packet.size;
+        queue.sentBytes += packet.size;
+        queue.rateController.onSent(packet.size);
+
+        // Record usage if the handler is active
+        // (dead channels usually don't consume real bandwidth)
+        // (but the channel may also still be used despite being inactive, e.g., during login)
+        if (handler.stillActive()) {
+            metrics.add(packet.size, packet.time);
+            long now = Clock.nanoTime();
+            queue.delays.record(now - packet.time, now);
+        }
+        metrics.countPacket(packet.packet.getId(), packet.size);
+        return batchBytes;
+    }
+
     public static final FixedPacketArrayEncoder FILTER = new FixedPacketArrayEncoder();
 
     @Override
     public boolean test(PacketHandler handler, Packet packet) {
         // If this is a new packet
-        if (packet != currentPacket && packet instanceof ToClientPacket toClientPacket) {
-            if (!queues.containsKey(handler)) {
-                queues.put(handler, new PlayerQueue(handler));
-                fixPipeline(handler);
-            }
-
+        if (packet instanceof ToClientPacket toClientPacket && !sending.get()) {
             PlayerQueue playerQueue = queues.get(handler);
-
             // Don't throttle local connections if disabled
-            if (handler.isLocalConnection() && !config.isThrottleLocalConnections()) {
+            boolean unthrottled = handler.isLocalConnection() && !config.isThrottleLocalConnections();
+            if (playerQueue == null) {
+                playerQueue = register(handler, unthrottled);
+            }
+            if (unthrottled) {
                 return false;
             }
 
-            // Default is JSON-based assets with ~80% compression
-            int packetSize = getSize(packet);
-
             // This is an unload-chunk-packet, clear chunk updates not even sent yet from the queue
-            Vector3i unloadChunkPos = ChunkHeaderParser.fromUnloadPacket(packet);
-            if (unloadChunkPos != null) {
-                playerQueue.remove(unloadChunkPos);
+            long unloadChunkKey = ChunkHeaderParser.fromUnloadPacket(packet);
+
+            if (unloadChunkKey != ChunkHeaderParser.NO_CHUNK) {
+                playerQueue.offer(new CachedPacket(toClientPacket, 0, unloadChunkKey));
             }
 
-            // Throttle large packets
-            if (largePacketIds.contains(packet.getId()) || config.isThrottleAssetDownloading() && assetPacketIds.contains(packet.getId())) {
-                if (tooCLose(handler, packet)) {
-                    // Send it immediately
-                    metrics.prioritized++;
+            // A world load leaves the client without the chunks it held
+            if (config.getResidentChunkColumns() > 0 && ResidentChunks.isWorldLoad(packet.getId())) {
+                playerQueue.offer(new CachedPacket(toClientPacket, 0));
+            }
+
+            // Throttle registered packets
+            PacketRegistry.PacketClass packetClass = packetRegistry.get(packet.getId());
+            if (packetClass != null) {
+                long chunkKey = packetClass.isSpatial() ? packetClass.position().applyAsLong(packet) : ChunkHeaderParser.NO_CHUNK;
+                if (packetClass.isSpatial() && chunkKey == ChunkHeaderParser.NO_CHUNK) {
+                    // Chunk packets can only be queued if we know where they are
+                    int estimated = packetRegistry.estimate(packet);
+                    metrics.addBase(packet.getId(), estimated);
+                    record(playerQueue, handler, packet, estimated, chunkKey);
                     return false;
+                } else if (tooCLose(handler, playerQueue, chunkKey)) {
+                    // Send it ahead of everything else
+                    CachedPacket urgent = new CachedPacket(toClientPacket, -1, chunkKey);
+                    urgent.urgent = true;
+                    playerQueue.offer(urgent);
+                    metrics.prioritized.increment();
+                    return true;
                 } else {
-                    // Queue the packet
-                    playerQueue.add(toClientPacket, packetSize);
+                    // Queue the packet, the sender estimates its size
+                    playerQueue.offer(new CachedPacket(toClientPacket, -1, chunkKey));
                     return true;
                 }
             }
 
             // Intercept and rebatch world map updates
             if (packet instanceof UpdateWorldMap updateWorldMap) {
-                UpdateWorldMap filter = playerQueue.getLazyMap().filter(updateWorldMap);
-                currentPacket = filter;
-                handler.write(filter);
-                currentPacket = null;
+                // The lazy map sends its tiles in batches of its own, the size of this one does not matter
+                record(playerQueue, handler, packet, 0, ChunkHeaderParser.NO_CHUNK);
+                playerQueue.offer(new CachedPacket(updateWorldMap, 0));
+                send(handler, LazyWorldMap.filter(updateWorldMap));
                 return true;
             }
 
             // Record the rest as base usage
-            metrics.addBase(packetSize);
+            int estimated = sizeEstimator.estimate(packet);
+            metrics.addBase(packet.getId(), estimated);
+            record(playerQueue, handler, packet, estimated, unloadChunkKey);
         }
 
         return false;
     }
 
+    /**
+     * Adds an offered packet to the traffic trace, if recorded, with the size the caller estimated anyway.
+     */
+    private void record(PlayerQueue queue, PacketHandler handler, Packet packet, int estimated, long chunkKey) {
+        TrafficRecorder recorder = this.recorder;
+        if (recorder != null && queue.traceId > 0) {
+            int serialized = (int) (estimated / sizeEstimator.getRatio(packet.getId()));
+            recorder.record(TrafficRecorder.OFFER, queue.traceId, packet, Clock.nanoTime(), serialized, estimated, -1, chunkKey, 0, getPlayerPosition(handler));
+        }
+    }
+
+    /**
+     * @param unthrottled whether the connection bypasses the queue, it then never waits for admission
+     */
+    private PlayerQueue register(PacketHandler handler, boolean unthrottled) {
+        // The connection keeps its queue when the handler changes, the new queue takes the old one over
+        Channel channel = handler.getChannel();
+        PlayerQueue previous = channel.attr(QUEUE).get();
+        PlayerQueue created = new PlayerQueue(handler, previous);
+        PlayerQueue existing = queues.putIfAbsent(handler, created);
+        if (existing != null) {
+            return existing;
+        }
+        channel.attr(QUEUE).set(created);
+
+        if (previous == null) {
+            created.wireSizeMonitor = fixPipeline(handler, created);
+            if (!unthrottled && !created.isAdmitted()) {
+                waiting.offer(channel);
+            }
+        } else {
+            queues.remove(previous.handler, previous);
+        }
+        channel.closeFuture().addListener(future -> {
+            if (queues.remove(handler, created)) {
+                created.close();
+            }
+        });
+        return created;
+    }
+
+    private void send(PacketHandler handler, ToClientPacket packet) {
+        sending.set(true);
+        try {
+            handler.write(packet);
+        } finally {
+            sending.set(false);
+        }
+    }
+
+    private void send(PacketHandler handler, List<ToClientPacket> packets) {
+        if (packets.isEmpty()) return;
+        sending.set(true);
+        try {
+            handler.write(packets.toArray(ToClientPacket[]::new));
+        } finally {
+            sending.set(false);
+            packets.clear();
+        }
+    }
+
+    private static long coalescingSlot(int id, long coalescingKey) {
+        return coalescingKey ^ (id * 0x9E3779B97F4A7C15L);
+    }
+
+    private static boolean replaces(CachedPacket packet, CachedPacket queued) {
+        return queued.packet.getId() == packet.packet.getId()
+                && queued.chunkKey == packet.chunkKey
+                && queued.coalescingKey == packet.coalescingKey;
+    }
+
     private static Vector3d getPlayerPosition(PacketHandler handler) {
         if (handler instanceof GamePacketHandler gamePacketHandler) {
             return gamePacketHandler.getPlayerRef().getTransform().getPosition();
@@ -245,18 +519,38 @@ public class QueuedPacketSenderSystem extends TickingSystem<ChunkStore> implemen
         return Vector3d.ZERO;
     }
 
-    private boolean tooCLose(PacketHandler handler, Packet packet) {
+    private static Vector3d getPlayerDirection(PacketHandler handler) {
+        if (handler instanceof GamePacketHandler gamePacketHandler) {
+            return gamePacketHandler.getPlayerRef().getTransform().getDirection();
+        }
+        return null;
+    }
+
+    private static UUID getWorldUuid(PacketHandler handler) {
+        if (handler instanceof GamePacketHandler gamePacketHandler) {
+            return gamePacketHandler.getPlayerRef().getWorldUuid();
+        }
+        return null;
+    }
+
+    private static World getWorld(GamePacketHandler handler) {
+        UUID worldUuid = handler.getPlayerRef().getWorldUuid();
+        Universe universe = worldUuid == null ? null : Universe.get();
+        return universe == null ? null : universe.getWorld(worldUuid);
+    }
+
+    private boolean tooCLose(PacketHandler handler, PlayerQueue queue, long chunkKey) {
+        if (chunkKey == ChunkHeaderParser.NO_CHUNK) return false;
         Vector3d position = getPlayerPosition(handler);
         if (position == Vector3d.ZERO) return false;
-        Vector3i chunkPos = ChunkHeaderParser.fromPacket(packet);
-        if (chunkPos == null) return false;
-        double distance = ChunkHeaderParser.distanceTo3dSquared(chunkPos, position);
-        return distance < minDistance;
+        double distance = ChunkHeaderParser.distanceTo3dSquared(chunkKey, position);
+        double radius = nearDistance + queue.getLead();
+        return distance < radius * radius;
     }
 
-    private static void fixPipeline(PacketHandler handler) {
+    private WireSizeMonitor fixPipeline(PacketHandler handler, PlayerQueue queue) {
+        ChannelPipeline p = handler.getChannel().pipeline();
         try {
-            ChannelPipeline p = handler.getChannel().pipeline();
             p.replace(
                     "packetArrayEncoder",
                     "fixedPacketArrayEncoder",
@@ -264,111 +558,766 @@ public class QueuedPacketSenderSystem extends TickingSystem<ChunkStore> implemen
             );
         } catch (Exception exception) {
             Main.LOGGER.atWarning().log("Failed to replace packet array encoder in pipeline for handler " + handler + " - " + exception);
+            return null;
+        }
+
+        // Measure the real size of every packet written after the array encoder split it up
+        try {
+            WireSizeMonitor monitor = new WireSizeMonitor(sizeEstimator, metrics, recorder, queue.traceId);
+            p.addBefore("fixedPacketArrayEncoder", "softPacketsWireSizeTagger", monitor.tagger);
+            p.addFirst("softPacketsWireSizeCounter", monitor.counter);
+            return monitor;
+        } catch (Exception exception) {
+            Main.LOGGER.atWarning().log("Failed to install wire size monitor in pipeline for handler " + handler + " - " + exception);
+            return null;
         }
     }
 
-    public record CachedPacket(ToClientPacket packet, int size, long time, Vector3i chunkPos) {
+    public static final class CachedPacket {
+        ToClientPacket packet;
+        // Estimated size, -1 until the sender estimated it
+        int size;
+        final long time;
+        final long chunkKey;
+
+        // Set when the packet got dropped but is still referenced by the sorted queue
+        boolean dropped;
+
+        // Copy shared with other queues, if any
+        SharedPacketCache.Entry shared;
+
+        // Heap held by the packet
+        int retained;
+
+        // Queued in the urgent tier
+        boolean urgent;
+
+        // Player position when offered, only kept while traffic is recorded
+        Vector3d position;
+
+        // Replaces a queued packet of the same type and key, NO_KEY if it does not
+        long coalescingKey = PacketRegistry.NO_KEY;
+
         public CachedPacket(ToClientPacket packet, int size) {
-            this(packet, size, System.nanoTime(), ChunkHeaderParser.fromPacket(packet));
+            this(packet, size, ChunkHeaderParser.NO_CHUNK);
         }
-    }
 
-    private static int getSize(Packet packet) {
-        return (int) (packet.computeSize() * compressionRatios.getOrDefault(packet.getId(), 0.25));
+        public CachedPacket(ToClientPacket packet, int size, long chunkKey) {
+            this.packet = packet;
+            this.size = size;
+            this.time = Clock.nanoTime();
+            this.chunkKey = chunkKey;
+        }
+
+        public ToClientPacket packet() {
+            return packet;
+        }
     }
 
     public class PlayerQueue {
-        private final Queue<CachedPacket> assetQueue = new LinkedList<>();
-        private Queue<CachedPacket> chunkQueue;
+        // Filled lock-free by the network threads, drained by the sender
+        private final Queue<CachedPacket> inbox = new ConcurrentLinkedQueue<>();
+
+        // Nearby chunks, sent in order before everything else
+        private final PacketDeque urgentQueue = new PacketDeque();
+        private final AssetScheduler assetQueue = new AssetScheduler(packetRegistry);
+
+        // Queued packets without a position that newer ones replace, by type and coalescing key
+        private final Long2ObjectOpenHashMap<CachedPacket> coalescable = new Long2ObjectOpenHashMap<>();
+
+        // Chunk bytes earned by sent asset bytes
+        private double assetCredit = 0;
+        private final ChunkRingQueue chunkQueue;
+
+        // Queued chunk packets by column, dropped packets are skipped lazily by the ring queue
+        private final Long2ObjectOpenHashMap<List<CachedPacket>> columns = new Long2ObjectOpenHashMap<>();
+        private int chunkCount = 0;
 
-        private final LazyWorldMap lazyMap = new LazyWorldMap();
+        private final LazyWorldMap lazyMap;
+
+        // Chunks the client holds, to skip identical re-sends, null if disabled
+        private final ResidentChunks resident;
+        private final Vector3d residentPosition;
+        private UUID residentWorld;
+
+        private final PacketHandler handler;
+        WireSizeMonitor wireSizeMonitor;
 
         public Vector3d lastPosition;
+        private final Vector3d velocity = new Vector3d();
+        private volatile double speed = 0;
+        // Position and time of the last velocity sample
+        private final Vector3d sampledPosition;
+        private long sampledNano;
         public long queueSize = 0;
+        public long retainedBytes = 0;
+
+        // Deficit round robin state, may go negative after a large packet
+        long deficit = 0;
+
+        final RateController rateController;
+
+        private double weight = 1.0;
+        private long boostUntil;
+
+        // Join time of the connection, and when the player had assets and spawn chunks, 0 while loading
+        private final long joinedNano;
+
+        // Queue of the connection's previous handler, taken over on the next drain
+        private volatile PlayerQueue predecessor;
+        // Since when nothing was queued, 0 while packets are
+        long emptySinceNano = 0;
+        private volatile long playableNano = 0;
+        private boolean receivedChunks = false;
+
+        long sentBytes = 0;
+        private double throughput = 0;
+
+        // Queueing delay of this player's packets
+        public final LatencyHistogram delays;
+
+        // Player id in the traffic trace, 0 if not recorded
+        final int traceId;
+        private long lastThroughputNano;
 
-        public PlayerQueue(PacketHandler handler) {
+        /**
+         * @param previous queue of the connection's previous handler, whose link state carries over, or null for a new connection
+         */
+        public PlayerQueue(PacketHandler handler, PlayerQueue previous) {
+            this.handler = handler;
+            Long joined = handler.getChannel().attr(JOINED).setIfAbsent(Clock.nanoTime());
+            this.joinedNano = joined == null ? handler.getChannel().attr(JOINED).get() : joined;
             this.lastPosition = getPlayerPosition(handler).clone();
-            this.chunkQueue = getSortedQueue(lastPosition, 32);
+            this.chunkQueue = new ChunkRingQueue(lastPosition, metrics);
+            this.residentPosition = lastPosition.clone();
+            this.lastThroughputNano = Clock.nanoTime();
+            this.sampledPosition = lastPosition.clone();
+            this.sampledNano = lastThroughputNano;
+            boost();
+
+            if (previous != null) {
+                this.predecessor = previous;
+                this.rateController = previous.rateController;
+                this.lazyMap = previous.lazyMap;
+                this.resident = previous.resident;
+                this.delays = previous.delays;
+                this.traceId = previous.traceId;
+                this.wireSizeMonitor = previous.wireSizeMonitor;
+                this.playableNano = previous.playableNano;
+                this.residentWorld = previous.residentWorld;
+                return;
+            }
+            this.rateController = new RateController(config);
+            this.lazyMap = new LazyWorldMap(lastPosition);
+            this.resident = config.getResidentChunkColumns() > 0 ? new ResidentChunks(config.getResidentChunkColumns()) : null;
+            this.delays = new LatencyHistogram();
+            this.residentWorld = getWorldUuid(handler);
+            TrafficRecorder recorder = QueuedPacketSenderSystem.this.recorder;
+            this.traceId = recorder == null ? 0 : recorder.nextPlayerId();
+
+            // Loaded in the background, applied once there
+            LinkProfileStore profiles = QueuedPacketSenderSystem.this.profiles;
+            PlayerAuthentication auth = handler.getAuth();
+            if (profiles != null && auth != null) {
+                profiles.get(auth.getUuid()).thenAccept(profile -> {
+                    if (profile != null) {
+                        rateController.seed(profile);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Temporarily raises this player's share of the bandwidth, e.g., after spawning or teleporting.
+         */
+        public void boost() {
+            boostUntil = Clock.nanoTime() + (long) (config.getBoostDuration() * 1_000_000_000.0);
+        }
+
+        public void setWeight(double weight) {
+            if (!(weight > 0)) {
+                throw new IllegalArgumentException("Weight must be positive, got " + weight);
+            }
+            this.weight = weight;
+        }
+
+        public double getWeight(long now) {
+            double weight = now < boostUntil ? Math.max(this.weight, config.getBoostWeight()) : this.weight;
+            if (config.getAdmissionSlots() > 0 && !isPlayable()) {
+                return isAdmitted() ? Math.max(weight, config.getAdmissionWeight()) : weight * WAITING_WEIGHT;
+            }
+            return weight;
+        }
+
+        void admit(long now) {
+            handler.getChannel().attr(ADMITTED).set(now);
+        }
+
+        /**
+         * Whether this player still occupies an admission slot. Players that take too long to load, or get nothing
+         * queued anymore, e.g., as they never received a chunk, free it for the next one.
+         */
+        boolean holdsAdmissionSlot(long now) {
+            Long admitted = handler.getChannel().attr(ADMITTED).get();
+            if (admitted == null || isPlayable()) return false;
+            long idle = emptySinceNano;
+            return now - admitted < ADMISSION_TIMEOUT && (idle == 0 || now - idle < ADMISSION_IDLE);
+        }
+
+        public boolean isPlayable() {
+            return playableNano != 0;
+        }
+
+        public boolean isAdmitted() {
+            return handler.getChannel().attr(ADMITTED).get() != null;
+        }
+
+        /**
+         * Marks the player playable once in game with no assets, urgent or spawn area chunks left.
+         */
+        synchronized void updatePlayable(PacketHandler handler, long now) {
+            if (playableNano != 0 || !receivedChunks || !(handler instanceof GamePacketHandler)) return;
+            if (assetQueue.isEmpty() && urgentQueue.isEmpty() && chunkQueue.lowestRing() > SPAWN_RING) {
+                playableNano = now;
+                metrics.addTimeToPlayable(now - joinedNano);
+            }
+        }
+
+        /**
+         * Average bytes per second sent from this queue.
+         */
+        public double getThroughput() {
+            return throughput;
+        }
+
+        void updateThroughput(long now) {
+            double window = (now - lastThroughputNano) / 1_000_000_000.0;
+            if (window > 1.0) {
+                throughput = throughput * 0.9 + sentBytes / window * 0.1;
+                sentBytes = 0;
+                lastThroughputNano = now;
+            }
+        }
+
+        public void offer(CachedPacket packet) {
+            if (traceId > 0 && QueuedPacketSenderSystem.this.recorder != null) {
+                // Recorded once drained, but where the player was when offered
+                packet.position = getPlayerPosition(handler).clone();
+            }
+            inbox.offer(packet);
+        }
+
+        public synchronized void drainInbox() {
+            PlayerQueue previous = predecessor;
+            if (previous != null) {
+                predecessor = null;
+                previous.handOver(this);
+            }
+
+            if (resident != null && !inbox.isEmpty()) {
+                // A teleport or a switch to another world may leave the client without the chunks it held
+                Vector3d position = getPlayerPosition(handler);
+                UUID world = getWorldUuid(handler);
+                if (position.distanceTo(residentPosition) > config.getTeleportDistance() || !Objects.equals(world, residentWorld)) {
+                    resident.clear();
+                }
+                residentPosition.assign(position);
+                residentWorld = world;
+            }
+
+            CachedPacket packet;
+            while ((packet = inbox.poll()) != null) {
+                int id = packet.packet.getId();
+                if (id == UnloadChunk.PACKET_ID) {
+                    remove(packet.chunkKey);
+                } else if (id == UpdateWorldMap.PACKET_ID) {
+                    lazyMap.update((UpdateWorldMap) packet.packet);
+                } else if (packet.size == 0 && ResidentChunks.isWorldLoad(id)) {
+                    if (resident != null) {
+                        resident.clear();
+                    }
+                } else {
+                    add(packet);
+                }
+            }
+
+            long budget = config.getPlayerQueueMemory();
+            while (budget > 0 && retainedBytes > budget) {
+                if (!evictFarthest()) {
+                    break;
+                }
+            }
         }
 
-        public synchronized void add(ToClientPacket packet, int packetSize) {
-            CachedPacket cachedPacket = new CachedPacket(packet, packetSize);
-            if (cachedPacket.chunkPos == null) {
+        /**
+         * Moves everything still queued over to the queue of the connection's next handler, in the order it would have been sent.
+         * The successor has not drained anything yet, so nothing it holds gets coalesced with an older packet.
+         */
+        private synchronized void handOver(PlayerQueue successor) {
+            drainInbox();
+            CachedPacket packet;
+            while ((packet = pollUrgent()) != null) {
+                successor.takeOver(packet);
+            }
+            while ((packet = assetQueue.poll()) != null) {
+                forget(packet);
+                successor.takeOver(packet);
+            }
+            while ((packet = chunkQueue.poll(ChunkRingQueue.MAX_RING)) != null) {
+                unindex(packet);
+                successor.takeOver(packet);
+            }
+            successor.receivedChunks |= receivedChunks;
+            clear();
+        }
+
+        private void takeOver(CachedPacket cachedPacket) {
+            share(cachedPacket);
+            enqueue(cachedPacket);
+        }
+
+        private void add(CachedPacket cachedPacket) {
+            share(cachedPacket);
+            if (cachedPacket.size < 0) {
+                cachedPacket.size = packetRegistry.estimate(cachedPacket.packet);
+            }
+            record(cachedPacket);
+
+            // Skip chunks the client still holds with the same bytes
+            if (resident != null && cachedPacket.chunkKey != ChunkHeaderParser.NO_CHUNK
+                    && isChunk(cachedPacket)
+                    && !resident.add(cachedPacket.packet.getId(), cachedPacket.chunkKey, contentHash(cachedPacket))) {
+                metrics.unchanged.increment();
+                metrics.unchangedBytes.add(cachedPacket.size);
+                if (cachedPacket.shared != null) {
+                    sharedCache.release(cachedPacket.shared);
+                    cachedPacket.shared = null;
+                }
+                return;
+            }
+            enqueue(cachedPacket);
+        }
+
+        private void share(CachedPacket cachedPacket) {
+            if (cachedPacket.chunkKey != ChunkHeaderParser.NO_CHUNK && config.getSharedCacheSize() > 0) {
+                SharedPacketCache.Entry shared = sharedCache.acquire(cachedPacket.packet, cachedPacket.chunkKey);
+                if (shared != null) {
+                    cachedPacket.packet = shared.packet;
+                    cachedPacket.size = shared.size;
+                    cachedPacket.shared = shared;
+                }
+            }
+        }
+
+        /**
+         * Adds a queued packet to the traffic trace, if recorded, at the time it was offered.
+         */
+        private void record(CachedPacket cachedPacket) {
+            TrafficRecorder recorder = QueuedPacketSenderSystem.this.recorder;
+            if (recorder == null || traceId <= 0) return;
+            ToClientPacket packet = cachedPacket.packet;
+            long hash = cachedPacket.chunkKey != ChunkHeaderParser.NO_CHUNK ? contentHash(cachedPacket) : 0;
+            int serialized = (int) (cachedPacket.size / sizeEstimator.getRatio(packet.getId()));
+            recorder.record(TrafficRecorder.OFFER, traceId, packet, cachedPacket.time, serialized, cachedPacket.size, -1, cachedPacket.chunkKey, hash,
+                    cachedPacket.position != null ? cachedPacket.position : getPlayerPosition(handler));
+        }
+
+        /**
+         * Hash of the encoded bytes, taken from the shared entry if there is one, 0 if the packet is not encoded.
+         */
+        private long contentHash(CachedPacket cachedPacket) {
+            return cachedPacket.shared != null ? cachedPacket.shared.hash : ChunkHeaderParser.hashOf(cachedPacket.packet);
+        }
+
+        private void enqueue(CachedPacket cachedPacket) {
+            if (cachedPacket.size < 0) {
+                cachedPacket.size = packetRegistry.estimate(cachedPacket.packet);
+            }
+            cachedPacket.coalescingKey = packetRegistry.coalescingKeyOf(cachedPacket.packet);
+            int capacity = ChunkHeaderParser.getCachedCapacity(cachedPacket.packet);
+            cachedPacket.retained = capacity >= 0 ? capacity : (int) (cachedPacket.size / sizeEstimator.getRatio(cachedPacket.packet.getId()));
+
+            int packetSize = cachedPacket.size;
+            if (cachedPacket.urgent) {
+                // The urgent copy supersedes a queued one, wherever it is
+                supersede(cachedPacket);
+                urgentQueue.add(cachedPacket);
+                index(cachedPacket);
+            } else if (cachedPacket.coalescingKey != PacketRegistry.NO_KEY
+                    && (cachedPacket.chunkKey == ChunkHeaderParser.NO_CHUNK || config.isCoalesceChunkPackets())
+                    && coalesce(cachedPacket)) {
+                return;
+            } else if (cachedPacket.chunkKey == ChunkHeaderParser.NO_CHUNK) {
                 assetQueue.add(cachedPacket);
+                if (cachedPacket.coalescingKey != PacketRegistry.NO_KEY) {
+                    coalescable.put(coalescingSlot(cachedPacket.packet.getId(), cachedPacket.coalescingKey), cachedPacket);
+                }
             } else {
                 chunkQueue.add(cachedPacket);
+                index(cachedPacket);
             }
             queueSize += packetSize;
+            retain(cachedPacket);
+        }
+
+        /**
+         * Replaces a still queued packet of the same type and coalescing key in place, keeping its position in the queue.
+         */
+        private boolean coalesce(CachedPacket packet) {
+            CachedPacket queued = findCoalescable(packet);
+            if (queued == null) return false;
+            queueSize += packet.size - queued.size;
+            metrics.coalesced.increment();
+            metrics.coalescedBytes.add(queued.size);
+            forget(queued);
+            queued.packet = packet.packet;
+            queued.size = packet.size;
+            queued.retained = packet.retained;
+            queued.shared = packet.shared;
+            retain(queued);
+            return true;
+        }
+
+        private CachedPacket findCoalescable(CachedPacket packet) {
+            if (packet.chunkKey == ChunkHeaderParser.NO_CHUNK) {
+                CachedPacket queued = coalescable.get(coalescingSlot(packet.packet.getId(), packet.coalescingKey));
+                return queued != null && replaces(packet, queued) ? queued : null;
+            }
+            List<CachedPacket> column = columns.get(ChunkHeaderParser.column(packet.chunkKey));
+            if (column == null) return null;
+            for (CachedPacket queued : column) {
+                if (replaces(packet, queued)) {
+                    return queued;
+                }
+            }
+            return null;
+        }
+
+        private void supersede(CachedPacket packet) {
+            if (packet.coalescingKey == PacketRegistry.NO_KEY) return;
+            List<CachedPacket> column = columns.get(ChunkHeaderParser.column(packet.chunkKey));
+            if (column == null) return;
+            for (CachedPacket queued : List.copyOf(column)) {
+                if (replaces(packet, queued)) {
+                    unindex(queued);
+                    queued.dropped = true;
+                    queueSize -= queued.size;
+                    metrics.coalesced.increment();
+                    metrics.coalescedBytes.add(queued.size);
+                }
+            }
+        }
+
+        private void index(CachedPacket packet) {
+            long key = ChunkHeaderParser.column(packet.chunkKey);
+            List<CachedPacket> column = columns.get(key);
+            if (column == null) {
+                column = new ArrayList<>(4);
+                columns.put(key, column);
+            }
+            column.add(packet);
+            chunkCount++;
+        }
+
+        /**
+         * Charges the heap held by a queued packet, shared packets are charged server-wide by the shared cache.
+         */
+        private void retain(CachedPacket packet) {
+            retainedBytes += packet.retained;
+            if (packet.shared == null) {
+                metrics.retain(packet.retained);
+            }
+        }
+
+        private void forget(CachedPacket packet) {
+            retainedBytes -= packet.retained;
+            if (packet.shared == null) {
+                metrics.retain(-packet.retained);
+            } else {
+                sharedCache.release(packet.shared);
+                packet.shared = null;
+            }
+        }
+
+        private void unindex(CachedPacket packet) {
+            long key = ChunkHeaderParser.column(packet.chunkKey);
+            List<CachedPacket> column = columns.get(key);
+            if (column != null && column.remove(packet) && column.isEmpty()) {
+                columns.remove(key);
+            }
+            chunkCount--;
+            forget(packet);
         }
 
         public boolean isEmpty() {
-            return assetQueue.isEmpty() && chunkQueue.isEmpty() && lazyMap.getQueueSize() == 0;
+            return inbox.isEmpty() && assetQueue.isEmpty() && chunkCount == 0 && lazyMap.getQueueSize() == 0;
         }
 
         public int getSize() {
-            return assetQueue.size() + chunkQueue.size();
+            return assetQueue.size() + chunkCount;
+        }
+
+        private CachedPacket pollChunk(int maxRing) {
+            CachedPacket packet = chunkQueue.poll(maxRing);
+            if (packet != null) {
+                receivedChunks = true;
+                unindex(packet);
+            }
+            return packet;
+        }
+
+        public boolean hasUrgent() {
+            return !urgentQueue.isEmpty();
+        }
+
+        public synchronized CachedPacket pollUrgent() {
+            CachedPacket packet;
+            while ((packet = urgentQueue.poll()) != null) {
+                if (!packet.dropped) {
+                    receivedChunks = true;
+                    unindex(packet);
+                    queueSize -= packet.size;
+                    return packet;
+                }
+            }
+            return null;
         }
 
         public synchronized CachedPacket poll() {
-            CachedPacket packet = assetQueue.poll();
+            CachedPacket urgent = pollUrgent();
+            if (urgent != null) {
+                return urgent;
+            }
+
+            CachedPacket packet = pollAsset();
             if (packet == null) {
-                packet = chunkQueue.poll();
+                packet = pollChunk(ChunkRingQueue.MAX_RING);
             }
             if (packet != null) {
                 queueSize -= packet.size;
             }
             if (packet == null) {
-                UpdateWorldMap nextPacket = lazyMap.getNextPacket();
+                UpdateWorldMap nextPacket = lazyMap.getNextPacket(config.getMapBatchSize());
                 if (nextPacket != null) {
-                    packet = new CachedPacket(nextPacket, QueuedPacketSenderSystem.getSize(nextPacket));
+                    packet = new CachedPacket(nextPacket, sizeEstimator.estimate(nextPacket));
+                }
+            }
+            return packet;
+        }
+
+        private CachedPacket pollAsset() {
+            if (assetQueue.isEmpty()) {
+                return null;
+            }
+
+            // Let some spawn area chunks through while large asset packs download, once the client is in the world
+            if (assetCredit > 0 && !assetQueue.hasPendingBarrier()) {
+                CachedPacket chunk = pollChunk(SPAWN_RING);
+                if (chunk != null) {
+                    assetCredit -= chunk.size;
+                    return chunk;
                 }
             }
+
+            CachedPacket packet = assetQueue.poll();
+            if (packet != null) {
+                if (packet.coalescingKey != PacketRegistry.NO_KEY) {
+                    coalescable.remove(coalescingSlot(packet.packet.getId(), packet.coalescingKey), packet);
+                }
+                forget(packet);
+                assetCredit = Math.min(assetCredit + packet.size * config.getAssetChunkShare(), config.getFairShareQuantum());
+            }
             return packet;
         }
 
         public synchronized void verify(PacketHandler handler) {
-            // Only recheck if the player has moved significantly
             Vector3d playerPosition = getPlayerPosition(handler);
-            if (playerPosition == null || playerPosition.distanceTo(lastPosition) < MIN_VERIFY_DISTANCE) {
+            if (playerPosition == null) {
                 return;
             }
+            long now = Clock.nanoTime();
+            if (playerPosition.distanceTo(lastPosition) > config.getTeleportDistance()) {
+                boost();
+                velocity.x = velocity.y = velocity.z = 0;
+                sampledPosition.assign(playerPosition);
+                sampledNano = now;
+            } else if (now - sampledNano >= VELOCITY_INTERVAL) {
+                // Smoothed velocity in blocks per second, over intervals long enough that paced drains do not add noise
+                double dt = (now - sampledNano) / 1_000_000_000.0;
+                double alpha = Math.min(1.0, dt * 2.0);
+                velocity.x += ((playerPosition.x - sampledPosition.x) / dt - velocity.x) * alpha;
+                velocity.y += ((playerPosition.y - sampledPosition.y) / dt - velocity.y) * alpha;
+                velocity.z += ((playerPosition.z - sampledPosition.z) / dt - velocity.z) * alpha;
+                sampledPosition.assign(playerPosition);
+                sampledNano = now;
+            }
+            speed = Math.sqrt(velocity.x * velocity.x + velocity.y * velocity.y + velocity.z * velocity.z);
             lastPosition.assign(playerPosition);
+            lazyMap.recenter(playerPosition);
 
-            // Send chunks too close immediately and resort queue
-            long time = System.nanoTime();
-            Queue<CachedPacket> sortedQueue = getSortedQueue(playerPosition, chunkQueue.size());
-            for (CachedPacket p : chunkQueue) {
-                if (ChunkHeaderParser.distanceTo3dSquared(p.chunkPos, playerPosition) < minDistance) {
-                    handler.write(p.packet);
-                    queueSize -= p.size;
-                    metrics.prioritized++;
-                } else {
-                    sortedQueue.add(p);
-                }
+            // Only recheck once the player entered another chunk, changed course or turned around
+            double ahead = getLead() / Math.max(speed, 1.0e-3);
+            Vector3d predicted = new Vector3d(
+                    playerPosition.x + velocity.x * ahead,
+                    playerPosition.y + velocity.y * ahead,
+                    playerPosition.z + velocity.z * ahead
+            );
+            if (!chunkQueue.recenter(playerPosition, predicted, getPlayerDirection(handler))) {
+                return;
+            }
+
+            // Move chunks now too close to the urgent tier, the radius grows with speed
+            int near = nearRing + (int) (getLead() / 32);
+            CachedPacket p;
+            while ((p = chunkQueue.poll(near)) != null) {
+                p.urgent = true;
+                urgentQueue.add(p);
+                metrics.prioritized.increment();
+            }
+        }
+
+        /**
+         * Blocks the player is expected to cover within the prediction time.
+         */
+        double getLead() {
+            return Math.min(speed * config.getPredictionTime(), ChunkRingQueue.MAX_LEAD * 32);
+        }
+
+        /**
+         * Releases everything still queued once the player disconnected.
+         */
+        synchronized void close() {
+            LinkProfileStore profiles = QueuedPacketSenderSystem.this.profiles;
+            PlayerAuthentication auth = handler.getAuth();
+            LinkProfileStore.LinkProfile profile = rateController.getProfile();
+            if (profiles != null && auth != null && profile != null) {
+                profiles.save(auth.getUuid(), profile);
+            }
+            clear();
+        }
+
+        private synchronized void clear() {
+            PlayerQueue previous = predecessor;
+            if (previous != null) {
+                predecessor = null;
+                previous.clear();
+            }
+
+            // Nothing is left to poll afterward, so nothing gets uncharged twice
+            inbox.clear();
+            coalescable.clear();
+            for (long key : columns.keySet().toLongArray()) {
+                dropColumn(key);
             }
-            this.chunkQueue = sortedQueue;
-            metrics.timeSorted += System.nanoTime() - time;
+            CachedPacket packet;
+            while ((packet = assetQueue.poll()) != null) {
+                forget(packet);
+            }
+            urgentQueue.clear();
+            chunkQueue.clear();
+            queueSize = 0;
         }
 
-        private static PriorityQueue<CachedPacket> getSortedQueue(Vector3d playerPosition, int initialCapacity) {
-            return new PriorityQueue<>(Math.max(32, initialCapacity), Comparator.comparingDouble(p -> ChunkHeaderParser.distanceTo3dSquared(p.chunkPos, playerPosition)));
+        /**
+         * Drops the chunks of the column of the farthest queued chunk and lets the server send them again once the player needs them.
+         * Other packets with a position cannot be sent again, so they are never evicted, nor are columns the player is about to need.
+         */
+        synchronized boolean evictFarthest() {
+            CachedPacket farthest = chunkQueue.pollFarthest(p -> isChunk(p) && !hasUrgent(ChunkHeaderParser.column(p.chunkKey)));
+            if (farthest == null) {
+                return false;
+            }
+            long key = ChunkHeaderParser.column(farthest.chunkKey);
+            for (CachedPacket p : dropChunks(key)) {
+                metrics.evictions.increment();
+                metrics.evictedBytes.add(p.retained);
+            }
+            if (resident != null) {
+                resident.forget(key);
+            }
+            requestReload(key);
+            return true;
+        }
+
+        private void requestReload(long columnKey) {
+            if (!(handler instanceof GamePacketHandler gamePacketHandler)) return;
+            long index = ChunkUtil.indexChunk(ChunkHeaderParser.x(columnKey), ChunkHeaderParser.z(columnKey));
+            Runnable reload = () -> {
+                try {
+                    gamePacketHandler.getPlayerRef().getChunkTracker().removeForReload(index);
+                } catch (Exception e) {
+                    Main.LOGGER.atWarning().log("Failed to reload evicted chunk for handler " + handler + " - " + e);
+                }
+            };
+
+            // The sender may run on another world's thread, the tracker belongs to the player's world
+            World world = getWorld(gamePacketHandler);
+            if (world != null) {
+                world.execute(reload);
+            } else {
+                reload.run();
+            }
         }
 
         public LazyWorldMap getLazyMap() {
             return lazyMap;
         }
 
-        public synchronized void remove(Vector3i unloadChunkPos) {
+        private void remove(long unloadChunkKey) {
             // Drop unloaded chunks from the queue
-            Iterator<CachedPacket> it = chunkQueue.iterator();
-            while (it.hasNext()) {
+            long key = ChunkHeaderParser.column(unloadChunkKey);
+            for (CachedPacket p : dropColumn(key)) {
+                metrics.addDrop(p.packet.getId());
+            }
+            if (resident != null) {
+                resident.forget(key);
+            }
+        }
+
+        private boolean isChunk(CachedPacket packet) {
+            return packetRegistry.get(packet.packet.getId()) == PacketRegistry.CHUNK;
+        }
+
+        private boolean hasUrgent(long key) {
+            List<CachedPacket> column = columns.get(key);
+            if (column == null) return false;
+            for (CachedPacket p : column) {
+                if (p.urgent) return true;
+            }
+            return false;
+        }
+
+        private List<CachedPacket> dropChunks(long key) {
+            List<CachedPacket> column = columns.get(key);
+            if (column == null) return List.of();
+            List<CachedPacket> dropped = new ArrayList<>(column.size());
+            for (Iterator<CachedPacket> it = column.iterator(); it.hasNext(); ) {
                 CachedPacket p = it.next();
-                if (p.chunkPos.x == unloadChunkPos.x && p.chunkPos.z == unloadChunkPos.z) {
-                    queueSize -= p.size;
+                if (isChunk(p) && !p.urgent) {
                     it.remove();
-                    metrics.drops++;
+                    forget(p);
+                    p.dropped = true;
+                    queueSize -= p.size;
+                    chunkCount--;
+                    dropped.add(p);
                 }
             }
+            if (column.isEmpty()) {
+                columns.remove(key);
+            }
+            return dropped;
+        }
+
+        private List<CachedPacket> dropColumn(long key) {
+            List<CachedPacket> column = columns.remove(key);
+            if (column == null) return List.of();
+            for (CachedPacket p : column) {
+                forget(p);
+                p.dropped = true;
+                queueSize -= p.size;
+                chunkCount--;
+            }
+            return column;
         }
     }
 }
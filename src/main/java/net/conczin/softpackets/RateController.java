@@ -0,0 +1,175 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.metrics.metric.HistoricMetric;
+import com.hypixel.hytale.protocol.packets.connection.PongType;
+import com.hypixel.hytale.server.core.io.PacketHandler;
+
+/**
+ * Delay-based AIMD rate control for a single player.
+ * The rate grows while the RTT stays near its baseline and the channel stays writable,
+ * and shrinks multiplicatively once queueing delay builds up or the channel buffer fills.
+ */
+public class RateController {
+    private static final long CONTROL_INTERVAL = 200_000_000L;
+    private static final long MIN_RTT_WINDOW = 10_000_000_000L;
+    private static final double BURST_SECONDS = 0.1;
+    private static final double DELAY_TOLERANCE = 0.5;
+    private static final double DECREASE = 0.7;
+    private static final double MIN_INCREASE = 8 * 1024;
+    private static final double PROFILE_SMOOTHING = 0.05;
+    private static final int MIN_PROFILE_SAMPLES = 25;
+
+    private final SoftPacketConfig config;
+
+    private double rate;
+    private double tokens = 0;
+
+    // RTT samples in the unit of the ping metric (microseconds)
+    private double rtt = 0;
+    private double minRtt = Double.MAX_VALUE;
+    private long minRttTime;
+
+    private double bottleneck = 0;
+    private long deliveredBytes = 0;
+    private boolean limited = false;
+    private boolean bufferFull = false;
+
+    // Rate the link sustained while data was waiting, and how often its buffer filled meanwhile
+    private double sustainedRate = 0;
+    private double bufferFullShare = 0;
+    private int samples = 0;
+
+    // Learned in an earlier session, applied by the sender on its next update
+    private volatile LinkProfileStore.LinkProfile seed;
+
+    // Baseline RTT of the path the seeded rate was learned on, until the first live sample checked it
+    private double seededMinRtt = 0;
+
+    private long lastUpdate;
+    private long lastRefill;
+
+    public RateController(SoftPacketConfig config) {
+        this.config = config;
+        this.rate = config.getInitialPlayerBandwidth();
+        this.lastUpdate = Clock.nanoTime();
+        this.lastRefill = lastUpdate;
+        this.minRttTime = lastUpdate;
+    }
+
+    public void update(PacketHandler handler, long now) {
+        LinkProfileStore.LinkProfile seed = this.seed;
+        if (seed != null) {
+            this.seed = null;
+            apply(seed);
+        }
+
+        // Refill tokens
+        double delta = (now - lastRefill) / 1_000_000_000.0;
+        lastRefill = now;
+        tokens = Math.min(tokens + rate * delta, rate * BURST_SECONDS);
+
+        if (now - lastUpdate < CONTROL_INTERVAL) {
+            return;
+        }
+
+        // Observe player ping
+        HistoricMetric ping = handler.getPingInfo(PongType.Raw).getPingMetricSet();
+        rtt = ping.getAverage(0);
+        if (rtt > 0 && (rtt <= minRtt || now - minRttTime > MIN_RTT_WINDOW)) {
+            minRtt = rtt;
+            minRttTime = now;
+        }
+
+        // A path much slower than the one the seeded rate was learned on starts over
+        if (seededMinRtt > 0 && rtt > 0) {
+            if (rtt > seededMinRtt * (1.0 + DELAY_TOLERANCE)) {
+                rate = Math.min(rate, config.getInitialPlayerBandwidth());
+            }
+            seededMinRtt = 0;
+        }
+
+        // Windowed maximum of the delivered bandwidth
+        double interval = (now - lastUpdate) / 1_000_000_000.0;
+        bottleneck = Math.max(deliveredBytes / interval, bottleneck * 0.95);
+
+        boolean delayed = rtt > 0 && minRtt < Double.MAX_VALUE && rtt > minRtt * (1.0 + DELAY_TOLERANCE);
+        if (delayed || bufferFull || !handler.getChannel().isWritable()) {
+            rate *= DECREASE;
+        } else if (limited) {
+            rate += Math.max(MIN_INCREASE, rate / 8);
+        }
+        rate = Math.max(config.getMinPlayerBandwidth(), Math.min(rate, config.getMaxBandwidth()));
+
+        if (limited || bufferFull) {
+            sustainedRate = samples == 0 ? rate : sustainedRate + (rate - sustainedRate) * PROFILE_SMOOTHING;
+            bufferFullShare += ((bufferFull ? 1.0 : 0.0) - bufferFullShare) * PROFILE_SMOOTHING;
+            samples++;
+        }
+
+        lastUpdate = now;
+        deliveredBytes = 0;
+        limited = false;
+        bufferFull = false;
+    }
+
+    /**
+     * Starts from the rate an earlier session learned for the link, unless this one already learned on its own.
+     * The RTT baseline is always measured live, a stale one would read as queueing delay.
+     */
+    public void seed(LinkProfileStore.LinkProfile profile) {
+        this.seed = profile;
+    }
+
+    private void apply(LinkProfileStore.LinkProfile profile) {
+        if (samples > 0) return;
+
+        // A link that often filled its buffer starts a step lower
+        double start = profile.rate() * (profile.bufferFullShare() > 0.5 ? DECREASE : 1.0);
+        rate = Math.max(config.getMinPlayerBandwidth(), Math.min(start, config.getMaxBandwidth()));
+        seededMinRtt = profile.minRtt();
+    }
+
+    /**
+     * What this session learned about the link, or null if data was rarely waiting long enough to tell.
+     */
+    public LinkProfileStore.LinkProfile getProfile() {
+        if (samples < MIN_PROFILE_SAMPLES) return null;
+        return new LinkProfileStore.LinkProfile(sustainedRate, getMinRtt(), bufferFullShare, System.currentTimeMillis());
+    }
+
+    public boolean hasTokens() {
+        if (tokens > 0) {
+            return true;
+        }
+        limited = true;
+        return false;
+    }
+
+    public void onSent(int bytes) {
+        tokens -= bytes;
+        deliveredBytes += bytes;
+    }
+
+    /**
+     * Called when the channel turned unwritable while data was waiting.
+     */
+    public void onBufferFull() {
+        bufferFull = true;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public double getBottleneck() {
+        return bottleneck;
+    }
+
+    public double getRtt() {
+        return rtt;
+    }
+
+    public double getMinRtt() {
+        return minRtt == Double.MAX_VALUE ? 0 : minRtt;
+    }
+}
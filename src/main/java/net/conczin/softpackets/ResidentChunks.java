@@ -0,0 +1,90 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.protocol.packets.setup.WorldLoadFinished;
+import com.hypixel.hytale.protocol.packets.setup.WorldLoadProgress;
+
+import java.util.Arrays;
+
+/**
+ * Encoded chunk packets a player's client holds, remembered by a hash of their bytes so identical re-sends can be skipped.
+ * Fixed size: columns hash to buckets of slots, and once a bucket is full a new packet replaces a remembered one,
+ * which only costs sending that chunk again. Only accessed by the sender.
+ */
+public class ResidentChunks {
+    // About two columns of sections and column-wide packets per bucket
+    private static final int SLOTS = 64;
+
+    private final long[] keys;
+    private final long[] hashes;
+    private final short[] ids;
+    private final int mask;
+
+    public ResidentChunks(long columns) {
+        int buckets = Integer.highestOneBit((int) Math.clamp(columns / 2, 1, 1 << 20));
+        this.keys = new long[buckets * SLOTS];
+        this.hashes = new long[buckets * SLOTS];
+        this.ids = new short[buckets * SLOTS];
+        this.mask = buckets - 1;
+        clear();
+    }
+
+    /**
+     * Whether a packet makes the client drop all chunks it holds.
+     */
+    public static boolean isWorldLoad(int packetId) {
+        return packetId == WorldLoadProgress.PACKET_ID || packetId == WorldLoadFinished.PACKET_ID;
+    }
+
+    private int bucket(long chunkKey) {
+        long column = ChunkHeaderParser.column(chunkKey) * 0x9E3779B97F4A7C15L;
+        return (int) (column >>> 32 ^ column) & mask;
+    }
+
+    /**
+     * Remembers a chunk packet about to be sent.
+     *
+     * @param hash hash of the encoded bytes, 0 if the packet is not encoded
+     * @return false if the client already holds a packet of the same type and chunk with the same bytes
+     */
+    public boolean add(int packetId, long chunkKey, long hash) {
+        if (hash == 0) return true;
+        short id = (short) packetId;
+
+        int start = bucket(chunkKey) * SLOTS;
+        int free = -1;
+        for (int i = start; i < start + SLOTS; i++) {
+            if (keys[i] == chunkKey && ids[i] == id) {
+                if (hashes[i] == hash) {
+                    return false;
+                }
+                hashes[i] = hash;
+                return true;
+            }
+            if (free < 0 && keys[i] == ChunkHeaderParser.NO_CHUNK) {
+                free = i;
+            }
+        }
+
+        int slot = free >= 0 ? free : start + (int) (hash & (SLOTS - 1));
+        keys[slot] = chunkKey;
+        ids[slot] = id;
+        hashes[slot] = hash;
+        return true;
+    }
+
+    /**
+     * Forgets a column the client unloaded or will not fully receive.
+     */
+    public void forget(long columnKey) {
+        int start = bucket(columnKey) * SLOTS;
+        for (int i = start; i < start + SLOTS; i++) {
+            if (keys[i] != ChunkHeaderParser.NO_CHUNK && ChunkHeaderParser.column(keys[i]) == columnKey) {
+                keys[i] = ChunkHeaderParser.NO_CHUNK;
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(keys, ChunkHeaderParser.NO_CHUNK);
+    }
+}
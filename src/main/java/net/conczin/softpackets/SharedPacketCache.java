@@ -0,0 +1,127 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.protocol.CachedPacket;
+import com.hypixel.hytale.protocol.ToClientPacket;
+import io.netty.buffer.ByteBuf;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Deduplicates encoded chunk packets queued for several players.
+ * Queues referencing the same chunk and content share one packet instance and its size estimate,
+ * entries are reference counted and dropped once the last queue sent or dropped them.
+ * Their heap is charged to the server-wide queue memory once, not per queue.
+ */
+public class SharedPacketCache {
+    private final SoftPacketConfig config;
+    private final SizeEstimator sizeEstimator;
+    private final Metrics metrics;
+
+    private final Long2ObjectOpenHashMap<Entry> entries = new Long2ObjectOpenHashMap<>();
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    public final LongAdder hits = new LongAdder();
+    public final LongAdder misses = new LongAdder();
+
+    public SharedPacketCache(SoftPacketConfig config, SizeEstimator sizeEstimator, Metrics metrics) {
+        this.config = config;
+        this.sizeEstimator = sizeEstimator;
+        this.metrics = metrics;
+    }
+
+    public static final class Entry {
+        final ToClientPacket packet;
+        final int id;
+        final long chunkKey;
+        final long hash;
+        final int size;
+        final int retained;
+        int references = 0;
+
+        Entry(ToClientPacket packet, long chunkKey, long hash, int size, int retained) {
+            this.packet = packet;
+            this.id = packet.getId();
+            this.chunkKey = chunkKey;
+            this.hash = hash;
+            this.size = size;
+            this.retained = retained;
+        }
+    }
+
+    private static long keyOf(int id, long chunkKey) {
+        return chunkKey ^ (id * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * Returns the shared entry for an encoded chunk packet, or null if it cannot be shared.
+     * The caller holds a reference until it calls {@link #release(Entry)}.
+     */
+    public synchronized Entry acquire(ToClientPacket packet, long chunkKey) {
+        if (!(packet instanceof CachedPacket<?> cachedPacket)) {
+            return null;
+        }
+
+        int id = packet.getId();
+        long key = keyOf(id, chunkKey);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.id == id && entry.chunkKey == chunkKey) {
+            if (entry.packet == packet) {
+                entry.references++;
+                hits.increment();
+                return entry;
+            }
+
+            ByteBuf bytes = ChunkHeaderParser.getCachedBytes(cachedPacket);
+            if (bytes == null) return null;
+            long hash = ChunkHeaderParser.hash(bytes);
+            if (entry.hash == hash && bytes.equals(ChunkHeaderParser.getCachedBytes((CachedPacket<?>) entry.packet))) {
+                entry.references++;
+                hits.increment();
+                return entry;
+            }
+            return insert(key, packet, chunkKey, bytes, hash);
+        }
+
+        ByteBuf bytes = ChunkHeaderParser.getCachedBytes(cachedPacket);
+        if (bytes == null) return null;
+        return insert(key, packet, chunkKey, bytes, ChunkHeaderParser.hash(bytes));
+    }
+
+    private Entry insert(long key, ToClientPacket packet, long chunkKey, ByteBuf bytes, long hash) {
+        misses.increment();
+        int retained = bytes.capacity();
+        if (retainedBytes.get() + retained > config.getSharedCacheSize()) {
+            return null;
+        }
+
+        // A newer version takes over the slot, queues still referencing the old one keep it alive
+        Entry entry = new Entry(packet, chunkKey, hash, sizeEstimator.estimate(packet), retained);
+        entry.references = 1;
+        entries.put(key, entry);
+        retainedBytes.addAndGet(retained);
+        metrics.retain(retained);
+        return entry;
+    }
+
+    public synchronized void release(Entry entry) {
+        if (--entry.references > 0) {
+            return;
+        }
+        retainedBytes.addAndGet(-entry.retained);
+        metrics.retain(-entry.retained);
+        long key = keyOf(entry.id, entry.chunkKey);
+        if (entries.get(key) == entry) {
+            entries.remove(key);
+        }
+    }
+
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+}
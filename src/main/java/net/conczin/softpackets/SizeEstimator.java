@@ -0,0 +1,70 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.protocol.Packet;
+import com.hypixel.hytale.protocol.packets.assets.AssetPart;
+import com.hypixel.hytale.protocol.packets.world.*;
+import com.hypixel.hytale.protocol.packets.worldmap.UpdateWorldMap;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Estimates the on-wire size of packets from their serialized size and a per-packet-type compression ratio.
+ * The ratios start at a static guess and follow the sizes measured by {@link WireSizeMonitor}.
+ */
+public class SizeEstimator {
+    public static final int MAX_PACKET_ID = 1024;
+
+    private static final double DEFAULT_RATIO = 0.25;
+    private static final double SMOOTHING = 0.02;
+
+    // Initial guesses until real samples arrive, default is JSON-based assets with ~80% compression
+    private static final Map<Integer, Double> compressionRatios = Map.of(
+            SetChunk.PACKET_ID, 0.065,
+            SetChunkHeightmap.PACKET_ID, 0.5,
+            SetChunkTintmap.PACKET_ID, 0.75,
+            SetChunkEnvironments.PACKET_ID, 0.15,
+            SetFluids.PACKET_ID, 0.05,
+            UpdateWorldMap.PACKET_ID, 0.3,
+            AssetPart.PACKET_ID, 0.85
+    );
+
+    // Written from several event loops, a lost update only loses a sample
+    private final double[] ratios = new double[MAX_PACKET_ID];
+    private final long[] samples = new long[MAX_PACKET_ID];
+
+    public SizeEstimator() {
+        Arrays.fill(ratios, DEFAULT_RATIO);
+        compressionRatios.forEach((id, ratio) -> {
+            if (id >= 0 && id < MAX_PACKET_ID) {
+                ratios[id] = ratio;
+            }
+        });
+    }
+
+    public int estimate(Packet packet) {
+        return (int) (packet.computeSize() * getRatio(packet.getId()));
+    }
+
+    public double getRatio(int packetId) {
+        if (packetId < 0 || packetId >= MAX_PACKET_ID) {
+            return compressionRatios.getOrDefault(packetId, DEFAULT_RATIO);
+        }
+        return ratios[packetId];
+    }
+
+    public long getSamples(int packetId) {
+        return packetId < 0 || packetId >= MAX_PACKET_ID ? 0 : samples[packetId];
+    }
+
+    public void observe(int packetId, int size, long wireBytes) {
+        if (packetId < 0 || packetId >= MAX_PACKET_ID || size <= 0) {
+            return;
+        }
+
+        // Replace the guess with the first samples, then settle into a moving average
+        double alpha = Math.max(SMOOTHING, 1.0 / (samples[packetId] + 1));
+        ratios[packetId] += ((double) wireBytes / size - ratios[packetId]) * alpha;
+        samples[packetId]++;
+    }
+}
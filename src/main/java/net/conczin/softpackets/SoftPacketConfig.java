@@ -25,14 +25,14 @@ public class SoftPacketConfig {
                     (config, s) -> config.minDistance = s,
                     config -> config.minDistance
             )
-            .documentation("Chunks closer than this distance (in blocks) will not be throttled to avoid falling through the world. However, due to Hytale's minimum rendering distance, you may see visual artifacts when lower than 128.")
+            .documentation("Chunks closer than this distance (in blocks) are sent ahead of all other packets to avoid falling through the world, limited only by UrgentBurst. However, due to Hytale's minimum rendering distance, you may see visual artifacts when lower than 128.")
             .add()
             .append(
                     new KeyedCodec<>("ThrottleWhenPingDegrades", Codec.BOOLEAN),
                     (config, s) -> config.throttleWhenPingDegrades = s,
                     config -> config.throttleWhenPingDegrades
             )
-            .documentation("Whether to throttle bandwidth when player ping degrades.")
+            .documentation("Whether to adapt each player's bandwidth to their ping, backing off when queueing delay builds up.")
             .add()
             .append(
                     new KeyedCodec<>("ThrottleLocalConnections", Codec.BOOLEAN),
@@ -48,6 +48,174 @@ public class SoftPacketConfig {
             )
             .documentation("Whether to throttle asset downloading connections.")
             .add()
+            .append(
+                    new KeyedCodec<>("FairShareQuantum", Codec.LONG),
+                    (config, s) -> config.fairShareQuantum = s,
+                    config -> config.fairShareQuantum
+            )
+            .documentation("Bytes each player may send per scheduling round before the next player gets a turn. Scaled by the player's weight.")
+            .add()
+            .append(
+                    new KeyedCodec<>("BoostWeight", Codec.DOUBLE),
+                    (config, s) -> config.boostWeight = s,
+                    config -> config.boostWeight
+            )
+            .documentation("Scheduling weight of players who just joined or teleported, relative to the default weight of 1.")
+            .add()
+            .append(
+                    new KeyedCodec<>("BoostDuration", Codec.DOUBLE),
+                    (config, s) -> config.boostDuration = s,
+                    config -> config.boostDuration
+            )
+            .documentation("How long in seconds the join or teleport boost lasts.")
+            .add()
+            .append(
+                    new KeyedCodec<>("TeleportDistance", Codec.LONG),
+                    (config, s) -> config.teleportDistance = s,
+                    config -> config.teleportDistance
+            )
+            .documentation("Movement (in blocks) between two queue checks that counts as a teleport and grants the boost.")
+            .add()
+            .append(
+                    new KeyedCodec<>("PredictionTime", Codec.DOUBLE),
+                    (config, s) -> config.predictionTime = s,
+                    config -> config.predictionTime
+            )
+            .documentation("Seconds of movement ahead of a player whose chunks are prioritized. Also widens MinDistance for fast players.")
+            .add()
+            .append(
+                    new KeyedCodec<>("UrgentBurst", Codec.LONG),
+                    (config, s) -> config.urgentBurst = s,
+                    config -> config.urgentBurst
+            )
+            .documentation("Bytes of chunks within MinDistance that may be sent at once ahead of everything else, e.g., after a teleport. Refills at MaxBandwidth.")
+            .add()
+            .append(
+                    new KeyedCodec<>("AssetChunkShare", Codec.DOUBLE),
+                    (config, s) -> config.assetChunkShare = s,
+                    config -> config.assetChunkShare
+            )
+            .documentation("Bytes of spawn area chunks sent per byte of queued assets, so players see the world while large asset packs download.")
+            .add()
+            .append(
+                    new KeyedCodec<>("AdmissionSlots", Codec.LONG),
+                    (config, s) -> config.admissionSlots = s,
+                    config -> config.admissionSlots
+            )
+            .documentation("If above 0, only this many loading players at a time get most of the bandwidth until their assets and spawn chunks arrived, the others wait in join order. Shortens loading times after restarts.")
+            .add()
+            .append(
+                    new KeyedCodec<>("AdmissionWeight", Codec.DOUBLE),
+                    (config, s) -> config.admissionWeight = s,
+                    config -> config.admissionWeight
+            )
+            .documentation("Bandwidth weight of admitted loading players.")
+            .add()
+            .append(
+                    new KeyedCodec<>("MetricsPort", Codec.LONG),
+                    (config, s) -> config.metricsPort = s,
+                    config -> config.metricsPort
+            )
+            .documentation("If above 0, serves scheduler metrics in OpenMetrics format on http://127.0.0.1:<port>/metrics.")
+            .add()
+            .append(
+                    new KeyedCodec<>("MetricsJmx", Codec.BOOLEAN),
+                    (config, s) -> config.metricsJmx = s,
+                    config -> config.metricsJmx
+            )
+            .documentation("Whether to expose scheduler metrics as the JMX bean net.conczin.softpackets:type=Scheduler.")
+            .add()
+            .append(
+                    new KeyedCodec<>("CoalesceChunkPackets", Codec.BOOLEAN),
+                    (config, s) -> config.coalesceChunkPackets = s,
+                    config -> config.coalesceChunkPackets
+            )
+            .documentation("Whether a newer chunk packet replaces an older, still queued copy of the same chunk instead of sending both.")
+            .add()
+            .append(
+                    new KeyedCodec<>("ResidentChunkColumns", Codec.LONG),
+                    (config, s) -> config.residentChunkColumns = s,
+                    config -> config.residentChunkColumns
+            )
+            .documentation("Chunk columns per player whose sent chunk packets are remembered by content hash, so byte-identical re-sends of chunks the client still holds are skipped. Forgotten on unload, teleport and world load. Each column takes about 600 bytes, 0 disables it.")
+            .add()
+            .append(
+                    new KeyedCodec<>("InitialPlayerBandwidth", Codec.LONG),
+                    (config, s) -> config.initialPlayerBandwidth = s,
+                    config -> config.initialPlayerBandwidth
+            )
+            .documentation("Bandwidth in bytes per second a new player starts with before their link has been measured.")
+            .add()
+            .append(
+                    new KeyedCodec<>("LinkProfiles", Codec.BOOLEAN),
+                    (config, s) -> config.linkProfiles = s,
+                    config -> config.linkProfiles
+            )
+            .documentation("Whether to remember the rate, round trip time and buffer behaviour of each player's link in the plugin's link-profiles.bin, so rejoining players start at the rate their link sustained before instead of the initial bandwidth.")
+            .add()
+            .append(
+                    new KeyedCodec<>("MinPlayerBandwidth", Codec.LONG),
+                    (config, s) -> config.minPlayerBandwidth = s,
+                    config -> config.minPlayerBandwidth
+            )
+            .documentation("Lowest bandwidth in bytes per second the per-player rate control backs off to.")
+            .add()
+            .append(
+                    new KeyedCodec<>("PacingInterval", Codec.LONG),
+                    (config, s) -> config.pacingInterval = s,
+                    config -> config.pacingInterval
+            )
+            .documentation("If above 0, queued packets are sent from a dedicated thread every this many milliseconds instead of once per world tick.")
+            .add()
+            .append(
+                    new KeyedCodec<>("BurstDuration", Codec.DOUBLE),
+                    (config, s) -> config.burstDuration = s,
+                    config -> config.burstDuration
+            )
+            .documentation("How many seconds of MinBandwidth and MaxBandwidth may be saved up and sent at once. Lower values smooth out bursts.")
+            .add()
+            .append(
+                    new KeyedCodec<>("BatchSize", Codec.LONG),
+                    (config, s) -> config.batchSize = s,
+                    config -> config.batchSize
+            )
+            .documentation("Estimated bytes of queued packets written to a player with a single write and flush.")
+            .add()
+            .append(
+                    new KeyedCodec<>("MapBatchSize", Codec.LONG),
+                    (config, s) -> config.mapBatchSize = s,
+                    config -> config.mapBatchSize
+            )
+            .documentation("Uncompressed bytes of world map images sent per map update.")
+            .add()
+            .append(
+                    new KeyedCodec<>("SharedCacheSize", Codec.LONG),
+                    (config, s) -> config.sharedCacheSize = s,
+                    config -> config.sharedCacheSize
+            )
+            .documentation("Bytes of encoded chunk packets shared between players waiting for the same chunk. 0 disables sharing.")
+            .add()
+            .append(
+                    new KeyedCodec<>("PlayerQueueMemory", Codec.LONG),
+                    (config, s) -> config.playerQueueMemory = s,
+                    config -> config.playerQueueMemory
+            )
+            .documentation("Heap bytes a single player's queue may hold before the farthest chunks are evicted and reloaded later. 0 is unlimited.")
+            .add()
+            .append(
+                    new KeyedCodec<>("QueueMemory", Codec.LONG),
+                    (config, s) -> config.queueMemory = s,
+                    config -> config.queueMemory
+            )
+            .documentation("Heap bytes all queues together may hold before the farthest chunks of the largest queue are evicted. 0 is unlimited.")
+            .add()
+            .append(
+                    new KeyedCodec<>("TraceSize", Codec.LONG),
+                    (config, s) -> config.traceSize = s,
+                    config -> config.traceSize
+            )
+            .documentation("If above 0, outbound packets are recorded without payloads into a trace of this many bytes in the plugin's traces folder, for offline replay. Each packet takes " + TrafficRecorder.RECORD_SIZE + " bytes, the oldest are overwritten once full.")
+            .add()
             .build();
 
     private long minBandwidth = 64 * 1024;
@@ -59,6 +227,39 @@ public class SoftPacketConfig {
     private boolean throttleLocalConnections = false;
     private boolean throttleAssetDownloading = false;
 
+    private long fairShareQuantum = 16 * 1024;
+    private double boostWeight = 4.0;
+    private double boostDuration = 30.0;
+    private long teleportDistance = 256;
+    private double predictionTime = 2.0;
+    private long urgentBurst = 4 * 1024 * 1024;
+    private double assetChunkShare = 0.25;
+
+    private long admissionSlots = 0;
+    private double admissionWeight = 8.0;
+
+    private long metricsPort = 0;
+    private boolean metricsJmx = true;
+
+    private boolean coalesceChunkPackets = true;
+    private long residentChunkColumns = 0;
+
+    private long initialPlayerBandwidth = 256 * 1024;
+    private boolean linkProfiles = true;
+    private long minPlayerBandwidth = 32 * 1024;
+
+    private long pacingInterval = 0;
+    private double burstDuration = 1.0;
+    private long batchSize = 64 * 1024;
+    private long mapBatchSize = 32 * 1024;
+
+    private long sharedCacheSize = 256 * 1024 * 1024;
+
+    private long playerQueueMemory = 64 * 1024 * 1024;
+    private long queueMemory = 512 * 1024 * 1024;
+
+    private long traceSize = 0;
+
     public long getMinBandwidth() {
         return minBandwidth;
     }
@@ -82,4 +283,104 @@ public class SoftPacketConfig {
     public boolean isThrottleAssetDownloading() {
         return throttleAssetDownloading;
     }
+
+    public long getFairShareQuantum() {
+        return Math.max(1, fairShareQuantum);
+    }
+
+    public double getBoostWeight() {
+        return boostWeight;
+    }
+
+    public double getBoostDuration() {
+        return boostDuration;
+    }
+
+    public long getTeleportDistance() {
+        return teleportDistance;
+    }
+
+    public double getPredictionTime() {
+        return predictionTime;
+    }
+
+    public long getUrgentBurst() {
+        return urgentBurst;
+    }
+
+    public double getAssetChunkShare() {
+        return assetChunkShare;
+    }
+
+    public long getAdmissionSlots() {
+        return admissionSlots;
+    }
+
+    public double getAdmissionWeight() {
+        return admissionWeight;
+    }
+
+    public long getMetricsPort() {
+        return metricsPort;
+    }
+
+    public boolean isMetricsJmx() {
+        return metricsJmx;
+    }
+
+    public boolean isCoalesceChunkPackets() {
+        return coalesceChunkPackets;
+    }
+
+    public long getResidentChunkColumns() {
+        return residentChunkColumns;
+    }
+
+    public long getInitialPlayerBandwidth() {
+        return initialPlayerBandwidth;
+    }
+
+    public boolean isLinkProfiles() {
+        return linkProfiles;
+    }
+
+    public long getMinPlayerBandwidth() {
+        return minPlayerBandwidth;
+    }
+
+    public long getPacingInterval() {
+        return pacingInterval;
+    }
+
+    public boolean isPacingEnabled() {
+        return pacingInterval > 0;
+    }
+
+    public double getBurstDuration() {
+        return burstDuration;
+    }
+
+    public long getBatchSize() {
+        return batchSize;
+    }
+
+    public long getMapBatchSize() {
+        return mapBatchSize;
+    }
+
+    public long getSharedCacheSize() {
+        return sharedCacheSize;
+    }
+
+    public long getPlayerQueueMemory() {
+        return playerQueueMemory;
+    }
+
+    public long getQueueMemory() {
+        return queueMemory;
+    }
+
+    public long getTraceSize() {
+        return traceSize;
+    }
 }
\ No newline at end of file
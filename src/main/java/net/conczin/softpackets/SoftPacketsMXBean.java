@@ -0,0 +1,56 @@
+package net.conczin.softpackets;
+
+/**
+ * Scheduler state exposed over JMX, read from the latest {@link MetricsSnapshot}.
+ */
+public interface SoftPacketsMXBean {
+    long getSnapshotTimestamp();
+
+    long getMinimumBucket();
+
+    long getMaximumBucket();
+
+    long getUrgentBucket();
+
+    long getBaseBandwidth();
+
+    long getThrottlePing();
+
+    long getThrottleBuffer();
+
+    long getThrottleMax();
+
+    long getThrottleUrgent();
+
+    long getPrioritized();
+
+    long getDrops();
+
+    long getCoalesced();
+
+    long getUnchanged();
+
+    long getUnchangedBytes();
+
+    long getEvictions();
+
+    long getTotalPackets();
+
+    long getRetainedBytes();
+
+    long getSortNanos();
+
+    long getDelayP50Nanos();
+
+    long getDelayP95Nanos();
+
+    long getDelayP99Nanos();
+
+    long getDelayMaxNanos();
+
+    int getPlayers();
+
+    long getQueuedPackets();
+
+    long getQueuedBytes();
+}
@@ -0,0 +1,155 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.math.vector.Vector3d;
+import com.hypixel.hytale.protocol.Packet;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records outbound packets without payloads into a memory-mapped ring of fixed-size records, for offline replay.
+ * Writers reserve a slot with a single atomic add and fill it in place, so recording never blocks the network threads.
+ * Once full, the oldest records are overwritten. The header holds the number of records written, updated on flush.
+ * <p>
+ * All values are little-endian, the offsets below describe the layout.
+ */
+public class TrafficRecorder {
+    public static final long MAGIC = 0x3145434152545053L;
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 56;
+
+    // Seen by the packet filter, with the estimated size, queued packets are recorded once the sender estimated them
+    public static final byte OFFER = 1;
+    // Written to the channel, with the measured size
+    public static final byte WIRE = 2;
+
+    public static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG.withOrder(ByteOrder.LITTLE_ENDIAN);
+    public static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT.withOrder(ByteOrder.LITTLE_ENDIAN);
+    public static final ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT.withOrder(ByteOrder.LITTLE_ENDIAN);
+    public static final ValueLayout.OfFloat FLOAT = ValueLayout.JAVA_FLOAT.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    // Header offsets
+    public static final long HEADER_VERSION = 8;
+    public static final long HEADER_RECORD_SIZE = 12;
+    public static final long HEADER_CAPACITY = 16;
+    public static final long HEADER_WRITTEN = 24;
+    public static final long HEADER_START = 32;
+
+    // Record offsets, aligned to their size
+    public static final long TIME = 0;
+    public static final long PLAYER = 8;
+    public static final long PACKET_ID = 12;
+    public static final long KIND = 14;
+    public static final long SERIALIZED = 16;
+    public static final long ESTIMATED = 20;
+    public static final long REAL = 24;
+    public static final long Y = 28;
+    public static final long CHUNK = 32;
+    public static final long X = 40;
+    public static final long Z = 44;
+    public static final long HASH = 48;
+
+    private final Arena arena;
+    private final MemorySegment segment;
+    private final long capacity;
+    private final long startNano;
+
+    private final AtomicLong cursor = new AtomicLong();
+    private final AtomicInteger players = new AtomicInteger();
+
+    private TrafficRecorder(Arena arena, MemorySegment segment, long capacity) {
+        this.arena = arena;
+        this.segment = segment;
+        this.capacity = capacity;
+        this.startNano = Clock.nanoTime();
+
+        segment.set(LONG, 0, MAGIC);
+        segment.set(INT, HEADER_VERSION, VERSION);
+        segment.set(INT, HEADER_RECORD_SIZE, RECORD_SIZE);
+        segment.set(LONG, HEADER_CAPACITY, capacity);
+        segment.set(LONG, HEADER_WRITTEN, 0);
+        segment.set(LONG, HEADER_START, System.currentTimeMillis());
+    }
+
+    /**
+     * Creates a new trace of the given size in the directory, or returns null if that fails.
+     */
+    public static TrafficRecorder open(Path directory, long size) {
+        long capacity = (size - HEADER_SIZE) / RECORD_SIZE;
+        if (capacity <= 0) {
+            return null;
+        }
+        try {
+            Files.createDirectories(directory);
+            Path file = directory.resolve("trace-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".bin");
+            Arena arena = Arena.ofShared();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MemorySegment segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity * RECORD_SIZE, arena);
+                Main.LOGGER.atInfo().log("Recording outbound traffic to " + file);
+                return new TrafficRecorder(arena, segment, capacity);
+            } catch (IOException | RuntimeException e) {
+                arena.close();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            Main.LOGGER.atWarning().log("Failed to create traffic trace in " + directory + " - " + e);
+            return null;
+        }
+    }
+
+    public int nextPlayerId() {
+        return players.incrementAndGet();
+    }
+
+    /**
+     * @param time nano time the packet was sent or offered at
+     * @param hash hash of the encoded bytes of a chunk packet, 0 if unknown
+     */
+    public void record(byte kind, int player, Packet packet, long time, int serialized, int estimated, int real, long chunkKey, long hash, Vector3d position) {
+        long index = cursor.getAndIncrement();
+        long offset = HEADER_SIZE + (index % capacity) * RECORD_SIZE;
+        try {
+            // The kind goes last, a reader skips slots still being written
+            segment.set(ValueLayout.JAVA_BYTE, offset + KIND, (byte) 0);
+            segment.set(LONG, offset + TIME, time - startNano);
+            segment.set(INT, offset + PLAYER, player);
+            segment.set(SHORT, offset + PACKET_ID, (short) packet.getId());
+            segment.set(INT, offset + SERIALIZED, serialized);
+            segment.set(INT, offset + ESTIMATED, estimated);
+            segment.set(INT, offset + REAL, real);
+            segment.set(LONG, offset + CHUNK, chunkKey);
+            segment.set(FLOAT, offset + X, position == null ? Float.NaN : (float) position.x);
+            segment.set(FLOAT, offset + Y, position == null ? Float.NaN : (float) position.y);
+            segment.set(FLOAT, offset + Z, position == null ? Float.NaN : (float) position.z);
+            segment.set(LONG, offset + HASH, hash);
+            segment.set(ValueLayout.JAVA_BYTE, offset + KIND, kind);
+        } catch (IllegalStateException e) {
+            // Closed while shutting down
+        }
+    }
+
+    /**
+     * Publishes the number of records written, so a copy of the file taken while recording can be replayed.
+     */
+    public void flush() {
+        segment.set(LONG, HEADER_WRITTEN, cursor.get());
+    }
+
+    public void close() {
+        flush();
+        segment.force();
+        arena.close();
+    }
+}
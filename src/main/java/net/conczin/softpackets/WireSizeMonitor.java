@@ -0,0 +1,119 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.protocol.Packet;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import net.conczin.softpackets.QueuedPacketSenderSystem.CachedPacket;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the encoded and compressed bytes of every packet leaving a channel.
+ * The tagger sits in front of the packet encoder and the counter at the head of the pipeline,
+ * encoding happens synchronously in between, so all bytes the counter sees belong to the tagged packet.
+ */
+public class WireSizeMonitor {
+    // Announced packets searched for a written one, and announced packets kept at most
+    private static final int LOOKAHEAD = 32;
+    private static final int MAX_PENDING = 4096;
+
+    private final SizeEstimator estimator;
+    private final Metrics metrics;
+    private final TrafficRecorder recorder;
+    private final int traceId;
+
+    // Throttled packets in the order they were written, each charged with its estimate
+    private final Queue<CachedPacket> charged = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private long bytes;
+
+    public final Tagger tagger = new Tagger();
+    public final Counter counter = new Counter();
+
+    public WireSizeMonitor(SizeEstimator estimator, Metrics metrics, TrafficRecorder recorder, int traceId) {
+        this.estimator = estimator;
+        this.metrics = metrics;
+        this.recorder = traceId > 0 ? recorder : null;
+        this.traceId = traceId;
+    }
+
+    /**
+     * Announces a throttled packet about to be written, so its real size can be charged once known.
+     */
+    public void expect(CachedPacket packet) {
+        charged.offer(packet);
+        pending.incrementAndGet();
+    }
+
+    /**
+     * Takes the announced packet that was just written, with all announced before it.
+     * Packets are written in order, so those never reached the tagger, e.g. because an encoder dropped them.
+     */
+    private CachedPacket take(Packet packet) {
+        int searched = 0;
+        for (CachedPacket queued : charged) {
+            if (queued.packet == packet) {
+                CachedPacket head;
+                do {
+                    head = charged.poll();
+                    pending.decrementAndGet();
+                } while (head != queued);
+                return queued;
+            }
+            if (++searched >= LOOKAHEAD) break;
+        }
+        return null;
+    }
+
+    public class Tagger extends ChannelOutboundHandlerAdapter {
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            // Only the tagger takes announced packets, so none go missing while the backlog is trimmed
+            while (pending.get() > MAX_PENDING && charged.poll() != null) {
+                pending.decrementAndGet();
+            }
+
+            if (!(msg instanceof Packet packet)) {
+                ctx.write(msg, promise);
+                return;
+            }
+
+            int id = packet.getId();
+            int size = packet.computeSize();
+            bytes = 0;
+            ctx.write(msg, promise);
+
+            if (bytes > 0) {
+                if (recorder != null) {
+                    int estimated = (int) (size * estimator.getRatio(id));
+                    recorder.record(TrafficRecorder.WIRE, traceId, packet, Clock.nanoTime(), size, estimated, (int) bytes, ChunkHeaderParser.fromPacket(packet), 0, null);
+                }
+                estimator.observe(id, size, bytes);
+                metrics.countWireBytes(id, bytes);
+            }
+
+            CachedPacket written = take(packet);
+            if (written != null && bytes > 0) {
+                metrics.correct(bytes - written.size);
+            }
+        }
+    }
+
+    public class Counter extends ChannelOutboundHandlerAdapter {
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof ByteBuf buf) {
+                bytes += buf.readableBytes();
+            } else if (msg instanceof ByteBufHolder holder) {
+                bytes += holder.content().readableBytes();
+            }
+            ctx.write(msg, promise);
+        }
+    }
+}
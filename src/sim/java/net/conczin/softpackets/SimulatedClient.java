@@ -0,0 +1,237 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.math.vector.Transform;
+import com.hypixel.hytale.math.vector.Vector3d;
+import com.hypixel.hytale.protocol.Packet;
+import com.hypixel.hytale.protocol.packets.connection.PongType;
+import com.hypixel.hytale.protocol.packets.setup.WorldLoadFinished;
+import com.hypixel.hytale.protocol.packets.world.SetChunk;
+import com.hypixel.hytale.protocol.packets.world.SetChunkHeightmap;
+import com.hypixel.hytale.protocol.packets.worldmap.MapChunk;
+import com.hypixel.hytale.protocol.packets.worldmap.UpdateWorldMap;
+import com.hypixel.hytale.server.core.io.PacketHandler;
+import com.hypixel.hytale.server.core.io.handlers.game.GamePacketHandler;
+import com.hypixel.hytale.server.core.universe.PlayerRef;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.mockito.Answers;
+import org.mockito.stubbing.Answer;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.LongConsumer;
+import java.util.function.ToIntFunction;
+
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+/**
+ * A connected client behind a simulated link, as the scheduler sees it, and the accounting of what reached it.
+ * Packets are tracked from the moment the server sends them until they arrive, to measure their delay and to tell
+ * whether they were still current on arrival.
+ * <p>
+ * Like on the server, the connection starts with a setup handler for the assets and switches to the game handler
+ * once the client finished loading the world.
+ */
+public class SimulatedClient {
+    // Items delivered in a packet, for tracking when and in which version they arrived
+    private record Sent(long nano, long seq, int id, long key) {
+    }
+
+    // Encoded packets may arrive as another player's copy with the same bytes, so they are tracked by content
+    private record Content(int id, long hash) {
+    }
+
+    public final Vector3d position = new Vector3d(16, 100, 16);
+    public final Vector3d direction = new Vector3d(1, 0, 0);
+
+    public final SimulatedLink link;
+    public final EmbeddedChannel channel;
+    public final PacketHandler setupHandler;
+    public final GamePacketHandler gameHandler;
+    private PacketHandler handler;
+
+    // Newest sent version per packet type and chunk, and the last unload per column
+    private final Map<Object, Sent> sent = new IdentityHashMap<>();
+    private final Map<Object, Sent> sentContent = new HashMap<>();
+    private final Long2LongOpenHashMap latest = new Long2LongOpenHashMap();
+    private final Long2LongOpenHashMap unloaded = new Long2LongOpenHashMap();
+    private long seq = 0;
+
+    // Set while waiting for the first nearby chunk after joining or teleporting
+    private long waitingSince;
+
+    public final LongArrayList timesToNearbyChunk = new LongArrayList();
+    public final LongArrayList chunkDelays = new LongArrayList();
+    public final LongArrayList tileDelays = new LongArrayList();
+    public final LongArrayList otherDelays = new LongArrayList();
+    public long deliveredBytes = 0;
+    public long supersededBytes = 0;
+    public long unloadedBytes = 0;
+
+    /**
+     * @param reload called with the chunk index when the scheduler evicts a column and asks for it again
+     */
+    public SimulatedClient(SimulatedLink.Profile profile, ToIntFunction<Packet> wireSize, LongConsumer reload) {
+        this.link = new SimulatedLink(profile, wireSize);
+
+        channel = new EmbeddedChannel();
+        channel.pipeline().addLast("simulatedLink", link);
+        channel.pipeline().addLast("packetArrayEncoder", new ChannelOutboundHandlerAdapter());
+
+        Transform transform = mock(Transform.class, withSettings().stubOnly());
+        when(transform.getPosition()).thenReturn(position);
+        when(transform.getDirection()).thenReturn(direction);
+
+        PlayerRef playerRef = mock(PlayerRef.class, withSettings().defaultAnswer(RETURNS_DEEP_STUBS));
+        when(playerRef.getTransform()).thenReturn(transform);
+        doAnswer(invocation -> {
+            reload.accept(invocation.<Long>getArgument(0));
+            return null;
+        }).when(playerRef.getChunkTracker()).removeForReload(anyLong());
+
+        // Writes of the handler go down the channel, whatever overload the sender picks
+        Answer<Object> writes = invocation -> {
+            if (!invocation.getMethod().getName().equals("write")) {
+                return Answers.RETURNS_DEEP_STUBS.answer(invocation);
+            }
+            for (Object argument : invocation.getRawArguments()) {
+                channel.write(argument);
+            }
+            channel.flush();
+            return null;
+        };
+        setupHandler = stub(mock(PacketHandler.class, withSettings().defaultAnswer(writes)));
+        gameHandler = stub(mock(GamePacketHandler.class, withSettings().defaultAnswer(writes)));
+        when(gameHandler.getPlayerRef()).thenReturn(playerRef);
+        handler = setupHandler;
+    }
+
+    private <T extends PacketHandler> T stub(T handler) {
+        when(handler.getChannel()).thenReturn(channel);
+        when(handler.stillActive()).thenReturn(true);
+        when(handler.isLocalConnection()).thenReturn(false);
+        when(handler.getPingInfo(PongType.Raw).getPingMetricSet().getAverage(0)).thenAnswer(invocation -> link.getRttMicros());
+        return handler;
+    }
+
+    /**
+     * Whether the client finished loading the world and the server sends through the game handler.
+     */
+    public boolean isInWorld() {
+        return handler == gameHandler;
+    }
+
+    /**
+     * Sends a packet the way the server does, through the packet filters first.
+     */
+    public void send(QueuedPacketSenderSystem system, Packet packet, long now) {
+        if (!(packet instanceof UpdateWorldMap)) {
+            track(trackingKey(packet), packet.getId(), ChunkHeaderParser.fromPacket(packet), now);
+        }
+        if (!system.test(handler, packet)) {
+            channel.writeAndFlush(packet);
+        }
+    }
+
+    /**
+     * Tracks a packet or map image until it arrives.
+     */
+    public void track(Object item, int id, long key, long now) {
+        Sent s = new Sent(now, ++seq, id, key);
+        sentFor(item).put(item, s);
+        if (key != ChunkHeaderParser.NO_CHUNK) {
+            latest.put(versionKey(id, key), s.seq());
+        }
+    }
+
+    private Map<Object, Sent> sentFor(Object item) {
+        return item instanceof Content ? sentContent : sent;
+    }
+
+    private static Object trackingKey(Packet packet) {
+        long hash = ChunkHeaderParser.hashOf(packet);
+        return hash == 0 ? packet : new Content(packet.getId(), hash);
+    }
+
+    private static long versionKey(int id, long key) {
+        return key ^ (id * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * Marks a column unloaded, chunk packets of it sent before and arriving later are wasted.
+     */
+    public void unload(long column) {
+        unloaded.put(ChunkHeaderParser.column(column), ++seq);
+    }
+
+    /**
+     * Starts waiting for the first chunk around the player, after joining or teleporting.
+     */
+    public void expectNearbyChunk(long now) {
+        waitingSince = now;
+    }
+
+    /**
+     * Moves the link forward and accounts for everything that reached the client.
+     */
+    public void advance(long now) {
+        link.advance(now, this::onArrival);
+        channel.releaseOutbound();
+    }
+
+    private void onArrival(SimulatedLink.Arrival arrival) {
+        deliveredBytes += arrival.bytes();
+        Packet packet = arrival.packet();
+        if (packet == null) {
+            return;
+        } else if (packet instanceof UpdateWorldMap map) {
+            if (map.chunks != null) {
+                for (MapChunk chunk : map.chunks) {
+                    if (chunk.image != null) {
+                        settle(chunk, SimulatedLink.TILE_BYTES, arrival.nano(), tileDelays);
+                    }
+                }
+            }
+            return;
+        }
+
+        int id = packet.getId();
+        settle(trackingKey(packet), arrival.bytes(), arrival.nano(), id == SetChunk.PACKET_ID || id == SetChunkHeightmap.PACKET_ID ? chunkDelays : otherDelays);
+        if (packet instanceof WorldLoadFinished) {
+            handler = gameHandler;
+        }
+
+        long key = id == SetChunk.PACKET_ID ? ChunkHeaderParser.fromPacket(packet) : ChunkHeaderParser.NO_CHUNK;
+        if (waitingSince != 0 && key != ChunkHeaderParser.NO_CHUNK
+                && Math.abs(ChunkHeaderParser.x(key) - ChunkRingQueue.toChunk(position.x)) <= 1
+                && Math.abs(ChunkHeaderParser.z(key) - ChunkRingQueue.toChunk(position.z)) <= 1) {
+            timesToNearbyChunk.add(arrival.nano() - waitingSince);
+            waitingSince = 0;
+        }
+    }
+
+    private void settle(Object item, int bytes, long now, LongArrayList delays) {
+        Sent s = sentFor(item).remove(item);
+        if (s == null) return;
+        delays.add(now - s.nano());
+        if (s.key() == ChunkHeaderParser.NO_CHUNK) return;
+
+        // A newer version was already on its way, or the client unloaded the column before it arrived
+        if (latest.get(versionKey(s.id(), s.key())) > s.seq()) {
+            supersededBytes += bytes;
+        } else if (s.id() != UpdateWorldMap.PACKET_ID && unloaded.get(ChunkHeaderParser.column(s.key())) > s.seq()) {
+            unloadedBytes += bytes;
+        }
+    }
+
+    /**
+     * Packets and map images not delivered, still queued or dropped and coalesced by the scheduler.
+     */
+    public int getPending() {
+        return sent.size() + sentContent.size();
+    }
+}
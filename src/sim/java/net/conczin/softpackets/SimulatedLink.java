@@ -0,0 +1,158 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.protocol.Packet;
+import com.hypixel.hytale.protocol.packets.assets.AssetPart;
+import com.hypixel.hytale.protocol.packets.world.SetChunk;
+import com.hypixel.hytale.protocol.packets.world.SetChunkHeightmap;
+import com.hypixel.hytale.protocol.packets.worldmap.MapChunk;
+import com.hypixel.hytale.protocol.packets.worldmap.UpdateWorldMap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * A bottleneck link in front of a player's channel.
+ * Written packets are charged their wire size from a size model, wait in a FIFO drained at the link bandwidth and arrive half an RTT
+ * after leaving it. Each packet is passed on as a buffer of its wire size, so the wire size monitor learns the model.
+ * With writability enabled the channel turns unwritable while more than the buffer size is queued, like a full socket buffer.
+ */
+public class SimulatedLink extends ChannelOutboundHandlerAdapter {
+    public static final int TILE_BYTES = 2048;
+
+    private static final byte[] PADDING = new byte[1024 * 1024];
+    private static final int WRITABILITY_INDEX = 1;
+
+    public record Profile(long bandwidth, long rttMillis, long bufferBytes, boolean writability) {
+    }
+
+    public record Arrival(Packet packet, int bytes, long nano) {
+    }
+
+    private record Pending(Packet packet, int bytes) {
+    }
+
+    private final Profile profile;
+    private final ToIntFunction<Packet> wireSize;
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+    private final ArrayDeque<Arrival> inFlight = new ArrayDeque<>();
+
+    private ChannelOutboundBuffer outboundBuffer;
+    private long queuedBytes = 0;
+    private double credit = 0;
+    private long lastNano;
+    private boolean writable = true;
+
+    public SimulatedLink(Profile profile, ToIntFunction<Packet> wireSize) {
+        this.profile = profile;
+        this.wireSize = wireSize;
+        this.lastNano = Clock.nanoTime();
+    }
+
+    /**
+     * Modelled compressed size of a packet, by type and for chunks by height, since the simulated packets carry no payload.
+     */
+    public static int wireSize(Packet packet) {
+        int id = packet.getId();
+        if (packet instanceof SetChunk chunk) {
+            int jitter = Math.floorMod(chunk.x * 73856093 ^ chunk.y * 19349663 ^ chunk.z * 83492791, 2048);
+            if (chunk.y > 4) return 200 + jitter / 8;
+            if (chunk.y >= 3) return 8 * 1024 + jitter;
+            return 4 * 1024 + jitter;
+        } else if (id == SetChunkHeightmap.PACKET_ID) {
+            return 1536;
+        } else if (packet instanceof UpdateWorldMap map) {
+            int bytes = 64;
+            if (map.chunks != null) {
+                for (MapChunk chunk : map.chunks) {
+                    bytes += chunk.image == null ? 16 : TILE_BYTES;
+                }
+            }
+            return bytes;
+        } else if (id == AssetPart.PACKET_ID) {
+            return 48 * 1024;
+        } else if (packet.getClass().getSimpleName().startsWith("Update")) {
+            // Config packets
+            return 24 * 1024;
+        }
+        return 16 + packet.computeSize();
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (!(msg instanceof Packet packet)) {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        int bytes = wireSize.applyAsInt(packet);
+        outboundBuffer = ctx.channel().unsafe().outboundBuffer();
+        charge(packet, bytes);
+        ctx.write(Unpooled.wrappedBuffer(PADDING, 0, Math.min(bytes, PADDING.length)), promise);
+    }
+
+    /**
+     * Queues bytes on the link, the packet may be null for traffic only known by its size.
+     */
+    public void charge(Packet packet, int bytes) {
+        queue.offer(new Pending(packet, bytes));
+        queuedBytes += bytes;
+        updateWritability();
+    }
+
+    /**
+     * Moves the link forward to the given time and reports packets that arrived at the client.
+     */
+    public void advance(long now, Consumer<Arrival> arrivals) {
+        double delta = (now - lastNano) / 1_000_000_000.0;
+        lastNano = now;
+
+        // An idle link does not save up bandwidth
+        credit = queue.isEmpty() ? 0 : credit + profile.bandwidth() * delta;
+        long arrival = now + profile.rttMillis() * 500_000L;
+        while (!queue.isEmpty() && credit >= queue.peek().bytes()) {
+            Pending pending = queue.poll();
+            credit -= pending.bytes();
+            queuedBytes -= pending.bytes();
+            inFlight.offer(new Arrival(pending.packet(), pending.bytes(), arrival));
+        }
+        updateWritability();
+
+        while (!inFlight.isEmpty() && inFlight.peek().nano() <= now) {
+            arrivals.accept(inFlight.poll());
+        }
+    }
+
+    private void updateWritability() {
+        if (!profile.writability() || outboundBuffer == null) return;
+
+        // Same hysteresis as Netty's water marks
+        if (writable && queuedBytes > profile.bufferBytes()) {
+            writable = false;
+            outboundBuffer.setUserDefinedWritability(WRITABILITY_INDEX, false);
+        } else if (!writable && queuedBytes < profile.bufferBytes() / 2) {
+            writable = true;
+            outboundBuffer.setUserDefinedWritability(WRITABILITY_INDEX, true);
+        }
+    }
+
+    /**
+     * Round trip time a ping would measure right now, the queued bytes delay it beyond the base RTT.
+     */
+    public double getRttMicros() {
+        return profile.rttMillis() * 1000.0 + queuedBytes * 1_000_000.0 / profile.bandwidth();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public boolean isIdle() {
+        return queue.isEmpty() && inFlight.isEmpty();
+    }
+}
@@ -0,0 +1,203 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.math.util.ChunkUtil;
+import com.hypixel.hytale.math.vector.Vector3d;
+import com.hypixel.hytale.protocol.Packet;
+import com.hypixel.hytale.protocol.packets.assets.*;
+import com.hypixel.hytale.protocol.packets.setup.*;
+import com.hypixel.hytale.protocol.packets.world.SetChunk;
+import com.hypixel.hytale.protocol.packets.world.SetChunkHeightmap;
+import com.hypixel.hytale.protocol.packets.world.UnloadChunk;
+import com.hypixel.hytale.protocol.packets.worldmap.MapChunk;
+import com.hypixel.hytale.protocol.packets.worldmap.MapImage;
+import com.hypixel.hytale.protocol.packets.worldmap.UpdateWorldMap;
+import it.unimi.dsi.fastutil.longs.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * A scripted player behind a simulated link, together with the server side that sends it chunk, unload, map and asset packets.
+ * The server side mimics the chunk tracker: columns within the view radius load nearest first, a few per tick,
+ * columns past it unload, loaded chunks see occasional block updates, and map images follow loaded columns.
+ */
+public class SimulatedPlayer {
+    public enum Movement {
+        IDLE(0),
+        WALK(4.3),
+        FLY(30),
+        TELEPORT(0);
+
+        final double speed;
+
+        Movement(double speed) {
+            this.speed = speed;
+        }
+    }
+
+    public record Terrain(int viewRadius, int sections, int columnsPerTick, double updatesPerSecond, long assetBytes) {
+    }
+
+    private static final double TELEPORT_INTERVAL = 15.0;
+    private static final double TELEPORT_DISTANCE = 4096;
+    private static final double MAP_INTERVAL = 1.0;
+    private static final int CONFIG_PACKETS = 8;
+
+    private final QueuedPacketSenderSystem system;
+    private final Terrain terrain;
+    private final Movement movement;
+    private final SplittableRandom random;
+
+    public final SimulatedClient client;
+    private final Vector3d position;
+
+    private final LongOpenHashSet loaded = new LongOpenHashSet();
+    private final Long2LongOpenHashMap columnsByIndex = new Long2LongOpenHashMap();
+    private final List<MapChunk> pendingTiles = new ArrayList<>();
+    private double sinceMap = 0;
+    private double sinceTeleport = 0;
+
+    public SimulatedPlayer(QueuedPacketSenderSystem system, SimulatedLink.Profile profile, Terrain terrain, Movement movement, long seed) {
+        this.system = system;
+        this.terrain = terrain;
+        this.movement = movement;
+        this.random = new SplittableRandom(seed);
+
+        // Evicted columns are sent again once the tracker gets to them
+        this.client = new SimulatedClient(profile, SimulatedLink::wireSize, index -> loaded.remove(columnsByIndex.get(index)));
+        this.position = client.position;
+    }
+
+    /**
+     * Sends the config and asset packets of a joining player.
+     */
+    public void join(long now) {
+        client.expectNearbyChunk(now);
+        send(new UpdateTranslations(), now);
+        send(new UpdateItems(), now);
+        for (int i = 2; i < CONFIG_PACKETS; i++) {
+            send(new UpdateSoundEvents(), now);
+        }
+        send(new AssetInitialize(), now);
+        for (long bytes = 0; bytes < terrain.assetBytes(); bytes += SimulatedLink.wireSize(new AssetPart())) {
+            send(new AssetPart(), now);
+        }
+        send(new AssetFinalize(), now);
+        send(new WorldLoadFinished(), now);
+    }
+
+    /**
+     * A server tick: moves the player and sends what the chunk tracker would, once the player is in the world.
+     */
+    public void tick(long now, double dt) {
+        if (!client.isInWorld()) return;
+        move(now, dt);
+
+        int cx = ChunkRingQueue.toChunk(position.x);
+        int cz = ChunkRingQueue.toChunk(position.z);
+        int radius = terrain.viewRadius();
+
+        // Unload columns past the view radius
+        LongIterator iterator = loaded.iterator();
+        while (iterator.hasNext()) {
+            long column = iterator.nextLong();
+            int x = ChunkHeaderParser.x(column);
+            int z = ChunkHeaderParser.z(column);
+            if (Math.max(Math.abs(x - cx), Math.abs(z - cz)) > radius + 1) {
+                iterator.remove();
+                UnloadChunk unload = new UnloadChunk();
+                unload.chunkX = x;
+                unload.chunkZ = z;
+                client.unload(column);
+                send(unload, now);
+            }
+        }
+
+        // Load missing columns nearest first
+        LongArrayList missing = new LongArrayList();
+        for (int x = cx - radius; x <= cx + radius; x++) {
+            for (int z = cz - radius; z <= cz + radius; z++) {
+                long column = ChunkHeaderParser.columnKey(x, z);
+                if ((x - cx) * (x - cx) + (z - cz) * (z - cz) <= radius * radius && !loaded.contains(column)) {
+                    missing.add(column);
+                }
+            }
+        }
+        missing.sort((LongComparator) (a, b) -> Integer.compare(distance(a, cx, cz), distance(b, cx, cz)));
+        for (int i = 0; i < Math.min(terrain.columnsPerTick(), missing.size()); i++) {
+            load(missing.getLong(i), now);
+        }
+
+        // Block updates re-send the surface section of a random loaded column
+        if (!loaded.isEmpty() && random.nextDouble() < terrain.updatesPerSecond() * dt) {
+            long column = loaded.toLongArray()[random.nextInt(loaded.size())];
+            sendChunk(ChunkHeaderParser.x(column), 3, ChunkHeaderParser.z(column), now);
+            pendingTiles.add(tile(column, now));
+        }
+
+        sinceMap += dt;
+        if (sinceMap >= MAP_INTERVAL && !pendingTiles.isEmpty()) {
+            sinceMap = 0;
+            send(new UpdateWorldMap(pendingTiles.toArray(MapChunk[]::new), null, null), now);
+            pendingTiles.clear();
+        }
+    }
+
+    private void move(long now, double dt) {
+        if (movement == Movement.TELEPORT) {
+            sinceTeleport += dt;
+            if (sinceTeleport >= TELEPORT_INTERVAL) {
+                sinceTeleport = 0;
+                position.x += TELEPORT_DISTANCE;
+                client.expectNearbyChunk(now);
+            }
+        } else {
+            position.x += client.direction.x * movement.speed * dt;
+            position.z += client.direction.z * movement.speed * dt;
+        }
+    }
+
+    private static int distance(long column, int cx, int cz) {
+        int dx = ChunkHeaderParser.x(column) - cx;
+        int dz = ChunkHeaderParser.z(column) - cz;
+        return dx * dx + dz * dz;
+    }
+
+    private void load(long column, long now) {
+        loaded.add(column);
+        int x = ChunkHeaderParser.x(column);
+        int z = ChunkHeaderParser.z(column);
+        columnsByIndex.put(ChunkUtil.indexChunk(x, z), column);
+
+        SetChunkHeightmap heightmap = new SetChunkHeightmap();
+        heightmap.x = x;
+        heightmap.z = z;
+        send(heightmap, now);
+        for (int y = 0; y < terrain.sections(); y++) {
+            sendChunk(x, y, z, now);
+        }
+        pendingTiles.add(tile(column, now));
+    }
+
+    private void sendChunk(int x, int y, int z, long now) {
+        SetChunk chunk = new SetChunk();
+        chunk.x = x;
+        chunk.y = y;
+        chunk.z = z;
+        send(chunk, now);
+    }
+
+    private MapChunk tile(long column, long now) {
+        MapChunk tile = new MapChunk();
+        tile.chunkX = ChunkHeaderParser.x(column);
+        tile.chunkZ = ChunkHeaderParser.z(column);
+        tile.image = new MapImage();
+        client.track(tile, UpdateWorldMap.PACKET_ID, column, now);
+        return tile;
+    }
+
+    private void send(Packet packet, long now) {
+        client.send(system, packet, now);
+    }
+}
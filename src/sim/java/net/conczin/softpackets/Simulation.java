@@ -0,0 +1,233 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.common.util.FormatUtil;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the scheduler against simulated players on constrained links, in real time on a single thread, and reports
+ * how long players waited for nearby chunks, how long packets were queued and how many bytes were wasted.
+ * <p>
+ * Run with {@code ./gradlew simulate --args="--scenario=walk --bandwidth=262144 --set MaxBandwidth=1048576"}.
+ * Options are {@code --scenario}, {@code --players}, {@code --movement}, {@code --join-interval}, {@code --duration},
+ * {@code --bandwidth} (bytes per second), {@code --rtt} (milliseconds), {@code --buffer} (bytes),
+ * {@code --writability}, {@code --view-radius}, {@code --asset-bytes}, {@code --seed},
+ * and {@code --set Key=Value} for any config option, using the keys of the config file.
+ */
+public class Simulation {
+    private static final long STEP = 2_000_000L;
+    private static final long TICK = 33_333_333L;
+    private static final long PROGRESS_INTERVAL = 10_000_000_000L;
+
+    private record Scenario(int players, SimulatedPlayer.Movement movement, double joinInterval) {
+    }
+
+    private static final Map<String, Scenario> scenarios = Map.of(
+            "join", new Scenario(1, SimulatedPlayer.Movement.IDLE, 0),
+            "walk", new Scenario(4, SimulatedPlayer.Movement.WALK, 2),
+            "fly", new Scenario(1, SimulatedPlayer.Movement.FLY, 0),
+            "teleport", new Scenario(1, SimulatedPlayer.Movement.TELEPORT, 0),
+            "crowd", new Scenario(20, SimulatedPlayer.Movement.WALK, 1)
+    );
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        SoftPacketConfig config = parse(args, options);
+
+        String name = options.getOrDefault("scenario", "join");
+        Scenario preset = scenarios.get(name);
+        if (preset == null) {
+            throw new IllegalArgumentException("Unknown scenario " + name + ", expected one of " + scenarios.keySet());
+        }
+        Scenario scenario = new Scenario(
+                Integer.parseInt(options.getOrDefault("players", String.valueOf(preset.players()))),
+                SimulatedPlayer.Movement.valueOf(options.getOrDefault("movement", preset.movement().name()).toUpperCase()),
+                Double.parseDouble(options.getOrDefault("join-interval", String.valueOf(preset.joinInterval())))
+        );
+        SimulatedLink.Profile profile = profile(options);
+        SimulatedPlayer.Terrain terrain = new SimulatedPlayer.Terrain(
+                Integer.parseInt(options.getOrDefault("view-radius", "8")),
+                10,
+                4,
+                2.0,
+                Long.parseLong(options.getOrDefault("asset-bytes", String.valueOf(8 * 1024 * 1024)))
+        );
+        double duration = Double.parseDouble(options.getOrDefault("duration", "60"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "0"));
+
+        System.out.printf("Scenario %s: %d players %s, %s/s link, %d ms RTT, %s buffer, writability %s, %.0f s%n",
+                name, scenario.players(), scenario.movement().name().toLowerCase(),
+                FormatUtil.bytesToString(profile.bandwidth()), profile.rttMillis(),
+                FormatUtil.bytesToString(profile.bufferBytes()), profile.writability() ? "on" : "off", duration);
+        run(config, scenario, profile, terrain, duration, seed);
+    }
+
+    /**
+     * Reads {@code --key=value} options and returns the config with all {@code --set Key=Value} overrides applied.
+     */
+    static SoftPacketConfig parse(String[] args, Map<String, String> options) {
+        SoftPacketConfig config = new SoftPacketConfig();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--set") && i + 1 < args.length) {
+                set(config, args[++i]);
+            } else if (args[i].startsWith("--") && args[i].contains("=")) {
+                options.put(args[i].substring(2, args[i].indexOf('=')), args[i].substring(args[i].indexOf('=') + 1));
+            } else {
+                throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        return config;
+    }
+
+    static SimulatedLink.Profile profile(Map<String, String> options) {
+        return new SimulatedLink.Profile(
+                Long.parseLong(options.getOrDefault("bandwidth", String.valueOf(256 * 1024))),
+                Long.parseLong(options.getOrDefault("rtt", "80")),
+                Long.parseLong(options.getOrDefault("buffer", String.valueOf(256 * 1024))),
+                Boolean.parseBoolean(options.getOrDefault("writability", "true"))
+        );
+    }
+
+    /**
+     * Sets a config option by its key in the config file, e.g. {@code MaxBandwidth=1048576}.
+     */
+    private static void set(SoftPacketConfig config, String override) {
+        int separator = override.indexOf('=');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Expected Key=Value, got " + override);
+        }
+        String key = override.substring(0, separator);
+        String value = override.substring(separator + 1);
+        try {
+            Field field = SoftPacketConfig.class.getDeclaredField(Character.toLowerCase(key.charAt(0)) + key.substring(1));
+            field.setAccessible(true);
+            if (field.getType() == long.class) {
+                field.setLong(config, Long.parseLong(value));
+            } else if (field.getType() == double.class) {
+                field.setDouble(config, Double.parseDouble(value));
+            } else if (field.getType() == boolean.class) {
+                field.setBoolean(config, Boolean.parseBoolean(value));
+            } else {
+                throw new IllegalArgumentException("Unsupported config option " + key);
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Unknown config option " + key, e);
+        }
+    }
+
+    private static void run(SoftPacketConfig config, Scenario scenario, SimulatedLink.Profile profile, SimulatedPlayer.Terrain terrain, double duration, long seed) {
+        QueuedPacketSenderSystem system = new QueuedPacketSenderSystem(config);
+        List<SimulatedPlayer> players = new ArrayList<>();
+
+        long start = Clock.nanoTime();
+        long end = start + (long) (duration * 1_000_000_000L);
+        long nextTick = start;
+        long nextDrain = start;
+        long nextProgress = start + PROGRESS_INTERVAL;
+        long drainInterval = config.isPacingEnabled() ? config.getPacingInterval() * 1_000_000L : TICK;
+
+        long now;
+        while ((now = Clock.nanoTime()) < end) {
+            // Join players one after another
+            while (players.size() < scenario.players() && now - start >= players.size() * (long) (scenario.joinInterval() * 1_000_000_000L)) {
+                SimulatedPlayer player = new SimulatedPlayer(system, profile, terrain, scenario.movement(), seed + players.size());
+                players.add(player);
+                player.join(now);
+            }
+
+            if (now >= nextTick) {
+                for (SimulatedPlayer player : players) {
+                    player.tick(now, TICK / 1_000_000_000.0);
+                }
+                nextTick += TICK;
+            }
+            if (now >= nextDrain) {
+                system.drain();
+                nextDrain += drainInterval;
+            }
+            for (SimulatedPlayer player : players) {
+                player.client.advance(now);
+            }
+
+            if (now >= nextProgress) {
+                long queued = 0;
+                long inLink = 0;
+                for (QueuedPacketSenderSystem.PlayerQueue queue : system.queues.values()) {
+                    queued += queue.queueSize;
+                }
+                for (SimulatedPlayer player : players) {
+                    inLink += player.client.link.getQueuedBytes();
+                }
+                System.out.printf(" %3d s: %s queued, %s in links%n",
+                        (now - start) / 1_000_000_000L, FormatUtil.bytesToString(queued), FormatUtil.bytesToString(inLink));
+                nextProgress += PROGRESS_INTERVAL;
+            }
+
+            LockSupport.parkNanos(STEP);
+        }
+
+        report(system, players.stream().map(player -> player.client).toList(), now);
+        for (SimulatedPlayer player : players) {
+            player.client.channel.finishAndReleaseAll();
+        }
+    }
+
+    /**
+     * Prints what the clients experienced and what the scheduler did.
+     */
+    static void report(QueuedPacketSenderSystem system, List<SimulatedClient> clients, long now) {
+        LongArrayList nearby = new LongArrayList();
+        LongArrayList chunks = new LongArrayList();
+        LongArrayList tiles = new LongArrayList();
+        LongArrayList assets = new LongArrayList();
+        long delivered = 0;
+        long superseded = 0;
+        long unloaded = 0;
+        long pending = 0;
+        for (SimulatedClient player : clients) {
+            nearby.addAll(player.timesToNearbyChunk);
+            chunks.addAll(player.chunkDelays);
+            tiles.addAll(player.tileDelays);
+            assets.addAll(player.otherDelays);
+            delivered += player.deliveredBytes;
+            superseded += player.supersededBytes;
+            unloaded += player.unloadedBytes;
+            pending += player.getPending();
+        }
+
+        Metrics metrics = system.metrics;
+        System.out.println("Time to first nearby chunk: " + quantiles(nearby) + " over " + nearby.size() + " joins and teleports");
+        System.out.println("Time to playable: median " + format(metrics.getTimeToPlayable(0.5)) + ", p95 " + format(metrics.getTimeToPlayable(0.95)) + " over " + metrics.getPlayablePlayers() + " players");
+        System.out.println("Queueing delay (last " + LatencyHistogram.getWindowSeconds() + " s): median " + format(metrics.delays.getQuantile(0.5, now)) + ", p95 " + format(metrics.delays.getQuantile(0.95, now)) + ", p99 " + format(metrics.delays.getQuantile(0.99, now)));
+        System.out.println("Delivery delay, chunks: " + quantiles(chunks));
+        System.out.println("Delivery delay, map images: " + quantiles(tiles));
+        System.out.println("Delivery delay, other: " + quantiles(assets));
+        System.out.println("Delivered " + FormatUtil.bytesToString(delivered) + ", wasted " + FormatUtil.bytesToString(superseded) + " on superseded and " + FormatUtil.bytesToString(unloaded) + " on unloaded chunks (" + String.format("%.1f%%", 100.0 * (superseded + unloaded) / Math.max(delivered, 1)) + ")");
+        System.out.println("Scheduler dropped " + metrics.drops.sum() + ", coalesced " + metrics.coalesced.sum() + " (" + FormatUtil.bytesToString(metrics.coalescedBytes.sum()) + "), skipped " + metrics.unchanged.sum() + " unchanged (" + FormatUtil.bytesToString(metrics.unchangedBytes.sum()) + "), evicted " + metrics.evictions.sum() + ", prioritized " + metrics.prioritized.sum() + " packets");
+        System.out.println("Throttles: Rate=" + metrics.throttlePing.sum() + " Buffer=" + metrics.throttleBuffer.sum() + " Max=" + metrics.throttleMax.sum() + " Urgent=" + metrics.throttleUrgent.sum());
+        System.out.println("Undelivered: " + pending + " packets and map images");
+    }
+
+    private static String quantiles(LongArrayList samples) {
+        if (samples.isEmpty()) return "none";
+        long[] sorted = samples.toLongArray();
+        Arrays.sort(sorted);
+        return "median " + format(quantile(sorted, 0.5)) + ", p95 " + format(quantile(sorted, 0.95)) + ", p99 " + format(quantile(sorted, 0.99)) + ", max " + format(sorted[sorted.length - 1]);
+    }
+
+    private static long quantile(long[] sorted, double q) {
+        return sorted[Math.min(sorted.length - 1, (int) (q * sorted.length))];
+    }
+
+    private static String format(long nanos) {
+        return FormatUtil.simpleTimeUnitFormat(nanos, TimeUnit.NANOSECONDS, 1);
+    }
+}
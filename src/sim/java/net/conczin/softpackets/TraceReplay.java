@@ -0,0 +1,320 @@
+package net.conczin.softpackets;
+
+import com.hypixel.hytale.common.util.FormatUtil;
+import com.hypixel.hytale.protocol.CachedPacket;
+import com.hypixel.hytale.protocol.Packet;
+import com.hypixel.hytale.protocol.packets.assets.*;
+import com.hypixel.hytale.protocol.packets.setup.*;
+import com.hypixel.hytale.protocol.packets.world.*;
+import com.hypixel.hytale.protocol.packets.worldmap.MapChunk;
+import com.hypixel.hytale.protocol.packets.worldmap.MapImage;
+import com.hypixel.hytale.protocol.packets.worldmap.UpdateWorldMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Replays a trace written by {@link TrafficRecorder} through the scheduler with any config, on a virtual clock,
+ * so it runs as fast as the scheduler allows. Every recorded player gets a simulated link.
+ * <p>
+ * Run with {@code ./gradlew replay --args="--trace=traces/trace-20260101-120000.bin --set MinDistance=96"},
+ * taking the link and config options of {@link Simulation}, and {@code --tail} for the seconds to keep sending after the trace ends.
+ * <p>
+ * Traces hold no payloads, packets are replayed as empty stand-ins charged their recorded size on the link.
+ * Section packets replay encoded, with a payload of their recorded size that differs exactly where the recorded bytes differed,
+ * so sharing and skipping unchanged chunks behave as on the server.
+ * Map updates replay as a single image at the player's column. Packets without a stand-in are sent directly, as base traffic.
+ */
+public class TraceReplay {
+    private static final long STEP = 1_000_000L;
+    private static final long TICK = 33_333_333L;
+
+    // Queued packets are recorded once drained with the time they were offered, records are reordered within this window
+    private static final long REORDER_WINDOW = 1_000_000_000L;
+
+    private static final Map<Integer, Supplier<Packet>> standIns = Map.of(
+            AssetInitialize.PACKET_ID, AssetInitialize::new,
+            AssetPart.PACKET_ID, AssetPart::new,
+            AssetFinalize.PACKET_ID, AssetFinalize::new,
+            WorldLoadProgress.PACKET_ID, WorldLoadProgress::new,
+            WorldLoadFinished.PACKET_ID, WorldLoadFinished::new
+    );
+
+    private record Trace(MemorySegment segment, long capacity, long first, long written, long startMillis) {
+        long offset(long index) {
+            return TrafficRecorder.HEADER_SIZE + (index % capacity) * TrafficRecorder.RECORD_SIZE;
+        }
+
+        byte kind(long offset) {
+            return segment.get(ValueLayout.JAVA_BYTE, offset + TrafficRecorder.KIND);
+        }
+
+        long time(long offset) {
+            return segment.get(TrafficRecorder.LONG, offset + TrafficRecorder.TIME);
+        }
+
+        int player(long offset) {
+            return segment.get(TrafficRecorder.INT, offset + TrafficRecorder.PLAYER);
+        }
+
+        int packetId(long offset) {
+            return Short.toUnsignedInt(segment.get(TrafficRecorder.SHORT, offset + TrafficRecorder.PACKET_ID));
+        }
+
+        int serialized(long offset) {
+            return segment.get(TrafficRecorder.INT, offset + TrafficRecorder.SERIALIZED);
+        }
+
+        int estimated(long offset) {
+            return segment.get(TrafficRecorder.INT, offset + TrafficRecorder.ESTIMATED);
+        }
+
+        int real(long offset) {
+            return segment.get(TrafficRecorder.INT, offset + TrafficRecorder.REAL);
+        }
+
+        long chunk(long offset) {
+            return segment.get(TrafficRecorder.LONG, offset + TrafficRecorder.CHUNK);
+        }
+
+        float position(long offset, long axis) {
+            return segment.get(TrafficRecorder.FLOAT, offset + axis);
+        }
+
+        long hash(long offset) {
+            return segment.get(TrafficRecorder.LONG, offset + TrafficRecorder.HASH);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        SoftPacketConfig config = Simulation.parse(args, options);
+        String file = options.get("trace");
+        if (file == null) {
+            throw new IllegalArgumentException("Expected --trace=<file>");
+        }
+        SimulatedLink.Profile profile = Simulation.profile(options);
+        long tail = (long) (Double.parseDouble(options.getOrDefault("tail", "30")) * 1_000_000_000L);
+
+        try (Arena arena = Arena.ofConfined(); FileChannel channel = FileChannel.open(Path.of(file), StandardOpenOption.READ)) {
+            Trace trace = open(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena));
+            System.out.printf("Replaying %d records from %s, %s/s links, %d ms RTT, %s buffer, writability %s%n",
+                    trace.written() - trace.first(), Instant.ofEpochMilli(trace.startMillis()),
+                    FormatUtil.bytesToString(profile.bandwidth()), profile.rttMillis(),
+                    FormatUtil.bytesToString(profile.bufferBytes()), profile.writability() ? "on" : "off");
+            replay(trace, config, profile, tail);
+        }
+    }
+
+    private static Trace open(MemorySegment segment) {
+        if (segment.byteSize() < TrafficRecorder.HEADER_SIZE || segment.get(TrafficRecorder.LONG, 0) != TrafficRecorder.MAGIC) {
+            throw new IllegalArgumentException("Not a traffic trace");
+        }
+        if (segment.get(TrafficRecorder.INT, TrafficRecorder.HEADER_VERSION) != TrafficRecorder.VERSION
+                || segment.get(TrafficRecorder.INT, TrafficRecorder.HEADER_RECORD_SIZE) != TrafficRecorder.RECORD_SIZE) {
+            throw new IllegalArgumentException("Unsupported trace version");
+        }
+        long capacity = segment.get(TrafficRecorder.LONG, TrafficRecorder.HEADER_CAPACITY);
+        long written = segment.get(TrafficRecorder.LONG, TrafficRecorder.HEADER_WRITTEN);
+        return new Trace(segment, capacity, Math.max(0, written - capacity), written, segment.get(TrafficRecorder.LONG, TrafficRecorder.HEADER_START));
+    }
+
+    /**
+     * Measured bytes per serialized byte of each packet type, from the sizes recorded on the wire.
+     */
+    private static double[] wireRatios(Trace trace) {
+        double[] serialized = new double[SizeEstimator.MAX_PACKET_ID];
+        double[] real = new double[SizeEstimator.MAX_PACKET_ID];
+        for (long i = trace.first(); i < trace.written(); i++) {
+            long offset = trace.offset(i);
+            int id = trace.packetId(offset);
+            if (trace.kind(offset) == TrafficRecorder.WIRE && id < SizeEstimator.MAX_PACKET_ID) {
+                serialized[id] += trace.serialized(offset);
+                real[id] += trace.real(offset);
+            }
+        }
+        double[] ratios = new double[SizeEstimator.MAX_PACKET_ID];
+        for (int id = 0; id < ratios.length; id++) {
+            ratios[id] = serialized[id] > 0 ? real[id] / serialized[id] : -1;
+        }
+        return ratios;
+    }
+
+    private static void replay(Trace trace, SoftPacketConfig config, SimulatedLink.Profile profile, long tail) {
+        double[] ratios = wireRatios(trace);
+
+        long[] clock = {1_000_000_000L};
+        Clock.set(() -> clock[0]);
+        long start = clock[0];
+
+        QueuedPacketSenderSystem system = new QueuedPacketSenderSystem(config);
+        Map<Packet, Integer> sizes = new IdentityHashMap<>();
+        Int2ObjectOpenHashMap<SimulatedClient> clients = new Int2ObjectOpenHashMap<>();
+
+        long drainInterval = config.isPacingEnabled() ? config.getPacingInterval() * 1_000_000L : TICK;
+        long nextDrain = start;
+        long index = trace.first();
+        long end = Long.MAX_VALUE;
+        long wallStart = System.nanoTime();
+
+        // Offers read ahead, by the time they were offered at
+        PriorityQueue<Long> pending = new PriorityQueue<>(Comparator.<Long>comparingLong(i -> trace.time(trace.offset(i))).thenComparingLong(i -> i));
+
+        while (clock[0] < end) {
+            long now = clock[0];
+            for (; index < trace.written(); index++) {
+                long offset = trace.offset(index);
+                if (trace.time(offset) > now - start + REORDER_WINDOW) break;
+                if (trace.kind(offset) == TrafficRecorder.OFFER) {
+                    pending.add(index);
+                }
+            }
+            while (!pending.isEmpty() && trace.time(trace.offset(pending.peek())) <= now - start) {
+                long offset = trace.offset(pending.poll());
+
+                int player = trace.player(offset);
+                SimulatedClient client = clients.get(player);
+                if (client == null) {
+                    client = new SimulatedClient(profile, packet -> {
+                        // Encoded stand-ins may be shared between players, their payload has the recorded size
+                        if (packet instanceof CachedPacket<?>) {
+                            return packet.computeSize();
+                        }
+                        Integer size = sizes.remove(packet);
+                        return size != null ? size : SimulatedLink.wireSize(packet);
+                    }, chunk -> {
+                        // The trace already holds what the server sent again
+                    });
+                    client.expectNearbyChunk(now);
+                    clients.put(player, client);
+                }
+                offer(trace, offset, client, system, sizes, ratios, config, now);
+            }
+            if (index >= trace.written() && pending.isEmpty() && end == Long.MAX_VALUE) {
+                end = now + tail;
+            }
+
+            if (now >= nextDrain) {
+                system.drain();
+                nextDrain += drainInterval;
+            }
+            for (SimulatedClient client : clients.values()) {
+                client.advance(now);
+            }
+            clock[0] += STEP;
+        }
+
+        System.out.printf("Replayed %s in %s%n",
+                FormatUtil.simpleTimeUnitFormat(clock[0] - start, TimeUnit.NANOSECONDS, 1),
+                FormatUtil.simpleTimeUnitFormat(System.nanoTime() - wallStart, TimeUnit.NANOSECONDS, 1));
+        Simulation.report(system, new ArrayList<>(clients.values()), clock[0]);
+        for (SimulatedClient client : clients.values()) {
+            client.channel.finishAndReleaseAll();
+        }
+    }
+
+    private static void offer(Trace trace, long offset, SimulatedClient client, QueuedPacketSenderSystem system,
+                              Map<Packet, Integer> sizes, double[] ratios, SoftPacketConfig config, long now) {
+        float x = trace.position(offset, TrafficRecorder.X);
+        if (!Float.isNaN(x)) {
+            double dx = x - client.position.x;
+            double dz = trace.position(offset, TrafficRecorder.Z) - client.position.z;
+            double distance = Math.sqrt(dx * dx + dz * dz);
+            if (distance > config.getTeleportDistance()) {
+                client.expectNearbyChunk(now);
+            } else if (distance > 0.01) {
+                client.direction.x = dx / distance;
+                client.direction.z = dz / distance;
+            }
+            client.position.x = x;
+            client.position.y = trace.position(offset, TrafficRecorder.Y);
+            client.position.z = trace.position(offset, TrafficRecorder.Z);
+        }
+
+        int id = trace.packetId(offset);
+        double ratio = id < ratios.length ? ratios[id] : -1;
+        int bytes = ratio > 0 ? (int) (trace.serialized(offset) * ratio) : trace.estimated(offset);
+
+        Packet packet = standIn(id, trace.chunk(offset), trace.hash(offset), bytes, client);
+        if (packet == null) {
+            // Sent as is by the server, only its size matters
+            system.metrics.addBase(id, trace.estimated(offset));
+            client.link.charge(null, bytes);
+            return;
+        }
+        if (packet instanceof UnloadChunk) {
+            client.unload(trace.chunk(offset));
+        }
+        if (!(packet instanceof CachedPacket<?>)) {
+            sizes.put(packet, bytes);
+        }
+        client.send(system, packet, now);
+    }
+
+    private static Packet standIn(int id, long key, long hash, int bytes, SimulatedClient client) {
+        int x = ChunkHeaderParser.x(key);
+        int y = ChunkHeaderParser.y(key);
+        int z = ChunkHeaderParser.z(key);
+        if (id == UpdateWorldMap.PACKET_ID) {
+            MapChunk tile = new MapChunk();
+            tile.chunkX = ChunkRingQueue.toChunk(client.position.x);
+            tile.chunkZ = ChunkRingQueue.toChunk(client.position.z);
+            tile.image = new MapImage();
+            return new UpdateWorldMap(new MapChunk[]{tile}, null, null);
+        }
+        if (key == ChunkHeaderParser.NO_CHUNK) {
+            Supplier<Packet> standIn = standIns.get(id);
+            return standIn == null ? null : standIn.get();
+        }
+        if (id == SetChunk.PACKET_ID) {
+            SetChunk packet = new SetChunk();
+            packet.x = x;
+            packet.y = y;
+            packet.z = z;
+            if (hash == 0) {
+                return packet;
+            }
+            packet.data = new byte[Math.max(Long.BYTES, bytes)];
+            ByteBuffer.wrap(packet.data).putLong(hash);
+            return CachedPacket.cache(packet);
+        } else if (id == SetFluids.PACKET_ID) {
+            SetFluids packet = new SetFluids();
+            packet.x = x;
+            packet.y = y;
+            packet.z = z;
+            return packet;
+        } else if (id == SetChunkHeightmap.PACKET_ID) {
+            SetChunkHeightmap packet = new SetChunkHeightmap();
+            packet.x = x;
+            packet.z = z;
+            return packet;
+        } else if (id == SetChunkTintmap.PACKET_ID) {
+            SetChunkTintmap packet = new SetChunkTintmap();
+            packet.x = x;
+            packet.z = z;
+            return packet;
+        } else if (id == SetChunkEnvironments.PACKET_ID) {
+            SetChunkEnvironments packet = new SetChunkEnvironments();
+            packet.x = x;
+            packet.z = z;
+            return packet;
+        } else if (id == UnloadChunk.PACKET_ID) {
+            UnloadChunk packet = new UnloadChunk();
+            packet.chunkX = x;
+            packet.chunkZ = z;
+            return packet;
+        }
+        return null;
+    }
+}